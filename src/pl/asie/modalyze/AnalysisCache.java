@@ -0,0 +1,156 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * On-disk cache of analysis results, keyed by file path and validated by
+ * size, modification time and (optionally) SHA256. The whole cache is
+ * discarded if the analyzer fingerprint - analyzer revision, settings and
+ * MCP mappings - differs from the one it was written with.
+ */
+public class AnalysisCache {
+    private static final int FORMAT_VERSION = 1;
+    private static final Gson GSON = new GsonBuilder()
+            .registerTypeAdapter(ModMetadata.class, new ModMetadataTypeAdapter())
+            .create();
+
+    private static class Entry {
+        long size, lastModified;
+        String sha256;
+        ModMetadata metadata;
+    }
+
+    private static class Contents {
+        int format;
+        String fingerprint;
+        Map<String, Entry> entries;
+    }
+
+    private final File file;
+    private final String fingerprint;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private boolean verifyHash;
+
+    public AnalysisCache(File file, String fingerprint) {
+        this.file = file;
+        this.fingerprint = fingerprint;
+    }
+
+    public AnalysisCache setVerifyHash(boolean vh) {
+        verifyHash = vh;
+        return this;
+    }
+
+    public void load() {
+        entries.clear();
+        if (!file.exists()) {
+            return;
+        }
+
+        try (Reader reader = new InputStreamReader(Files.newInputStream(file.toPath()), StandardCharsets.UTF_8)) {
+            Contents contents = GSON.fromJson(reader, Contents.class);
+            if (contents != null && contents.format == FORMAT_VERSION
+                    && fingerprint.equals(contents.fingerprint) && contents.entries != null) {
+                entries.putAll(contents.entries);
+            }
+        } catch (IOException | JsonParseException e) {
+            System.err.println("[WARN] Could not read cache " + file + ", ignoring: " + e.getMessage());
+        }
+    }
+
+    public void save() throws IOException {
+        entries.keySet().removeIf(path -> !new File(path).isFile());
+
+        Contents contents = new Contents();
+        contents.format = FORMAT_VERSION;
+        contents.fingerprint = fingerprint;
+        contents.entries = entries;
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        File tmpFile = File.createTempFile(file.getName(), ".tmp", parent);
+        try {
+            try (Writer writer = new OutputStreamWriter(Files.newOutputStream(tmpFile.toPath()), StandardCharsets.UTF_8)) {
+                GSON.toJson(contents, writer);
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpFile.toPath());
+        }
+    }
+
+    private String hash(File f) throws IOException {
+        try (InputStream stream = Files.newInputStream(f.toPath())) {
+            return DigestUtils.sha256Hex(stream);
+        }
+    }
+
+    private boolean isValid(Entry entry, File f) throws IOException {
+        return entry.size == f.length() && entry.lastModified == f.lastModified()
+                && (!verifyHash || (entry.sha256 != null && entry.sha256.equals(hash(f))));
+    }
+
+    public ModMetadata analyze(File f, Function<File, ModMetadata> analyzer) {
+        String key = f.getAbsolutePath();
+        Entry entry = entries.get(key);
+        try {
+            if (entry != null && isValid(entry, f)) {
+                return entry.metadata;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        entry = new Entry();
+        entry.size = f.length();
+        entry.lastModified = f.lastModified();
+        entry.metadata = analyzer.apply(f);
+        if (verifyHash) {
+            if (entry.metadata != null && entry.metadata.sha256 != null) {
+                entry.sha256 = entry.metadata.sha256;
+            } else {
+                try {
+                    entry.sha256 = hash(f);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return entry.metadata;
+                }
+            }
+        }
+
+        entries.put(key, entry);
+        return entry.metadata;
+    }
+}
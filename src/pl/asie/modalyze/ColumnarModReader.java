@@ -0,0 +1,232 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Reads files written by {@link ColumnarModWriter}. The file is
+ * memory-mapped, and only the columns asked for are decoded; dictionary
+ * strings are decoded the first time a column refers to them.
+ */
+public class ColumnarModReader {
+    private static class ColumnInfo {
+        final byte type;
+        final int offset;
+
+        ColumnInfo(byte type, int offset) {
+            this.type = type;
+            this.offset = offset;
+        }
+    }
+
+    private final ByteBuffer buffer;
+    private final int count;
+    private final Map<String, ColumnInfo> columns = new LinkedHashMap<>();
+    private final int dictionaryOffset, dictionaryDataOffset;
+    private final String[] dictionary;
+
+    public ColumnarModReader(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() < 24 || channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Not a columnar result file: " + file);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (buffer.getInt(0) != ColumnarModWriter.MAGIC) {
+            throw new IOException("Not a columnar result file: " + file);
+        } else if (buffer.getInt(4) != ColumnarModWriter.FORMAT_VERSION) {
+            throw new IOException("Unsupported columnar format version " + buffer.getInt(4) + ": " + file);
+        }
+
+        count = buffer.getInt(8);
+        int columnCount = buffer.getInt(12);
+        dictionaryOffset = (int) buffer.getLong(16);
+        int pos = 24;
+        for (int i = 0; i < columnCount; i++) {
+            int nameLength = buffer.getShort(pos) & 0xFFFF;
+            byte[] name = new byte[nameLength];
+            ByteBuffer nameBuffer = buffer.duplicate();
+            nameBuffer.position(pos + 2);
+            nameBuffer.get(name);
+            pos += 2 + nameLength;
+            columns.put(new String(name, StandardCharsets.UTF_8), new ColumnInfo(buffer.get(pos), (int) buffer.getLong(pos + 1)));
+            pos += 17;
+        }
+
+        dictionary = new String[buffer.getInt(dictionaryOffset)];
+        dictionaryDataOffset = dictionaryOffset + 4 + (dictionary.length + 1) * 4;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public Set<String> getColumnNames() {
+        return Collections.unmodifiableSet(columns.keySet());
+    }
+
+    private String getString(int id) {
+        if (id < 0) {
+            return null;
+        }
+
+        String s = dictionary[id];
+        if (s == null) {
+            int start = buffer.getInt(dictionaryOffset + 4 + id * 4);
+            int end = buffer.getInt(dictionaryOffset + 8 + id * 4);
+            byte[] data = new byte[end - start];
+            ByteBuffer dataBuffer = buffer.duplicate();
+            dataBuffer.position(dictionaryDataOffset + start);
+            dataBuffer.get(data);
+            s = dictionary[id] = new String(data, StandardCharsets.UTF_8);
+        }
+        return s;
+    }
+
+    private ColumnInfo getColumn(String name, byte type) {
+        ColumnInfo column = columns.get(name);
+        if (column == null) {
+            throw new IllegalArgumentException("Unknown column: " + name);
+        } else if (column.type != type) {
+            throw new IllegalArgumentException("Column " + name + " is of type " + column.type + ", not " + type);
+        }
+        return column;
+    }
+
+    public String[] readStrings(String name) {
+        ColumnInfo column = getColumn(name, ColumnarModWriter.TYPE_STRING);
+        String[] values = new String[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = getString(buffer.getInt(column.offset + i * 4));
+        }
+        return values;
+    }
+
+    public List<List<String>> readStringLists(String name) {
+        ColumnInfo column = getColumn(name, ColumnarModWriter.TYPE_STRING_LIST);
+        List<List<String>> values = new ArrayList<>(count);
+        int pos = column.offset + count * 4;
+        for (int i = 0; i < count; i++) {
+            int size = buffer.getInt(column.offset + i * 4);
+            if (size < 0) {
+                values.add(null);
+                continue;
+            }
+
+            List<String> list = new ArrayList<>(size);
+            for (int j = 0; j < size; j++, pos += 4) {
+                list.add(getString(buffer.getInt(pos)));
+            }
+            values.add(list);
+        }
+        return values;
+    }
+
+    /**
+     * @return The maps of the given column; entries are in the order they
+     * were written in.
+     */
+    public List<Map<String, String>> readStringMaps(String name) {
+        ColumnInfo column = getColumn(name, ColumnarModWriter.TYPE_STRING_MAP);
+        List<Map<String, String>> values = new ArrayList<>(count);
+        int pos = column.offset + count * 4;
+        for (int i = 0; i < count; i++) {
+            int size = buffer.getInt(column.offset + i * 4);
+            if (size < 0) {
+                values.add(null);
+                continue;
+            }
+
+            Map<String, String> map = new LinkedHashMap<>();
+            for (int j = 0; j < size; j++, pos += 8) {
+                map.put(getString(buffer.getInt(pos)), getString(buffer.getInt(pos + 4)));
+            }
+            values.add(map);
+        }
+        return values;
+    }
+
+    public boolean[] readBooleans(String name) {
+        ColumnInfo column = getColumn(name, ColumnarModWriter.TYPE_BOOLEAN);
+        boolean[] values = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = buffer.get(column.offset + i) != 0;
+        }
+        return values;
+    }
+
+    public Integer[] readIntegers(String name) {
+        ColumnInfo column = getColumn(name, ColumnarModWriter.TYPE_INT);
+        Integer[] values = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            int value = buffer.getInt(column.offset + i * 4);
+            values[i] = value != Integer.MIN_VALUE ? value : null;
+        }
+        return values;
+    }
+
+    /**
+     * @return The values of the column for the given field, one per record.
+     */
+    private List<?> readColumn(ModMetadata.Field<?> field) {
+        switch (field.type) {
+            case STRING:
+                return Arrays.asList(readStrings(field.name));
+            case STRING_LIST:
+                return readStringLists(field.name);
+            case STRING_MAP:
+                return readStringMaps(field.name);
+            case BOOLEAN: {
+                boolean[] values = readBooleans(field.name);
+                List<Boolean> list = new ArrayList<>(count);
+                for (boolean value : values) {
+                    list.add(value);
+                }
+                return list;
+            }
+            case INT:
+                return Arrays.asList(readIntegers(field.name));
+            default:
+                throw new IllegalArgumentException("Unsupported field type: " + field.type);
+        }
+    }
+
+    /**
+     * Decodes every column back into whole records.
+     */
+    public List<ModMetadata> readAll() {
+        List<ModMetadata> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            records.add(new ModMetadata());
+        }
+        for (ModMetadata.Field<?> field : ModMetadata.FIELDS) {
+            List<?> values = readColumn(field);
+            for (int i = 0; i < count; i++) {
+                field.set(records.get(i), values.get(i));
+            }
+        }
+        return records;
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Writes ModMetadata records in a compact binary format, one column per
+ * field, which {@link ColumnarModReader} can load column by column. All
+ * strings are stored once in a dictionary and referenced by index.
+ *
+ * Layout (big-endian):
+ *
+ *   int magic, int format version, int record count, int column count,
+ *   long dictionary offset,
+ *   per column: UTF name, byte type, long offset, long length,
+ *   dictionary: int count, int[count + 1] offsets into the UTF-8 data, data,
+ *   column data
+ *
+ * Columns hold an int per record for strings (dictionary index, -1 for
+ * null) and nullable ints (Integer.MIN_VALUE for null), a byte per record
+ * for booleans, and for lists and maps an int per record with the number
+ * of elements (-1 for null) followed by the dictionary indices of all
+ * elements, or of all keys and values in turn.
+ */
+public class ColumnarModWriter {
+    static final int MAGIC = 0x4D434F4C; // MCOL
+    static final int FORMAT_VERSION = 1;
+    static final byte TYPE_STRING = 1;
+    static final byte TYPE_STRING_LIST = 2;
+    static final byte TYPE_STRING_MAP = 3;
+    static final byte TYPE_BOOLEAN = 4;
+    static final byte TYPE_INT = 5;
+
+    private static class IntList {
+        private int[] data = new int[64];
+        private int size;
+
+        void add(int value) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, size * 2);
+            }
+            data[size++] = value;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            for (int i = 0; i < size; i++) {
+                out.writeInt(data[i]);
+            }
+        }
+    }
+
+    private abstract class Column {
+        final String name;
+        final byte type;
+        final ModMetadata.Field<?> field;
+
+        Column(ModMetadata.Field<?> field, byte type) {
+            this.name = field.name;
+            this.type = type;
+            this.field = field;
+        }
+
+        abstract void add(ModMetadata m);
+
+        abstract long getLength();
+
+        abstract void write(DataOutputStream out) throws IOException;
+    }
+
+    private class StringColumn extends Column {
+        private final IntList ids = new IntList();
+
+        StringColumn(ModMetadata.Field<?> field) {
+            super(field, TYPE_STRING);
+        }
+
+        @Override
+        void add(ModMetadata m) {
+            ids.add(getId((String) field.get(m)));
+        }
+
+        @Override
+        long getLength() {
+            return ids.size * 4L;
+        }
+
+        @Override
+        void write(DataOutputStream out) throws IOException {
+            ids.write(out);
+        }
+    }
+
+    private class StringListColumn extends Column {
+        private final IntList counts = new IntList();
+        private final IntList ids = new IntList();
+
+        StringListColumn(ModMetadata.Field<?> field) {
+            super(field, TYPE_STRING_LIST);
+        }
+
+        @Override
+        void add(ModMetadata m) {
+            Collection<?> values = (Collection<?>) field.get(m);
+            counts.add(values != null ? values.size() : -1);
+            if (values != null) {
+                for (Object s : values) {
+                    ids.add(getId((String) s));
+                }
+            }
+        }
+
+        @Override
+        long getLength() {
+            return (counts.size + ids.size) * 4L;
+        }
+
+        @Override
+        void write(DataOutputStream out) throws IOException {
+            counts.write(out);
+            ids.write(out);
+        }
+    }
+
+    private class StringMapColumn extends Column {
+        private final IntList counts = new IntList();
+        private final IntList ids = new IntList();
+
+        StringMapColumn(ModMetadata.Field<?> field) {
+            super(field, TYPE_STRING_MAP);
+        }
+
+        @Override
+        void add(ModMetadata m) {
+            Map<?, ?> values = (Map<?, ?>) field.get(m);
+            counts.add(values != null ? values.size() : -1);
+            if (values != null) {
+                for (Map.Entry<?, ?> entry : values.entrySet()) {
+                    ids.add(getId((String) entry.getKey()));
+                    ids.add(getId((String) entry.getValue()));
+                }
+            }
+        }
+
+        @Override
+        long getLength() {
+            return (counts.size + ids.size) * 4L;
+        }
+
+        @Override
+        void write(DataOutputStream out) throws IOException {
+            counts.write(out);
+            ids.write(out);
+        }
+    }
+
+    private class BooleanColumn extends Column {
+        private byte[] values = new byte[64];
+
+        BooleanColumn(ModMetadata.Field<?> field) {
+            super(field, TYPE_BOOLEAN);
+        }
+
+        @Override
+        void add(ModMetadata m) {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            values[count] = (byte) (Boolean.TRUE.equals(field.get(m)) ? 1 : 0);
+        }
+
+        @Override
+        long getLength() {
+            return count;
+        }
+
+        @Override
+        void write(DataOutputStream out) throws IOException {
+            out.write(values, 0, count);
+        }
+    }
+
+    private class IntColumn extends Column {
+        private final IntList values = new IntList();
+
+        IntColumn(ModMetadata.Field<?> field) {
+            super(field, TYPE_INT);
+        }
+
+        @Override
+        void add(ModMetadata m) {
+            Integer value = (Integer) field.get(m);
+            values.add(value != null ? value : Integer.MIN_VALUE);
+        }
+
+        @Override
+        long getLength() {
+            return values.size * 4L;
+        }
+
+        @Override
+        void write(DataOutputStream out) throws IOException {
+            values.write(out);
+        }
+    }
+
+    private final Map<String, Integer> dictionaryIds = new HashMap<>();
+    private final List<byte[]> dictionary = new ArrayList<>();
+    private long dictionaryBytes;
+    private final List<Column> columns = new ArrayList<>();
+    private int count;
+
+    public ColumnarModWriter() {
+        for (ModMetadata.Field<?> field : ModMetadata.FIELDS) {
+            columns.add(createColumn(field));
+        }
+    }
+
+    private Column createColumn(ModMetadata.Field<?> field) {
+        switch (field.type) {
+            case STRING:
+                return new StringColumn(field);
+            case STRING_LIST:
+                return new StringListColumn(field);
+            case STRING_MAP:
+                return new StringMapColumn(field);
+            case BOOLEAN:
+                return new BooleanColumn(field);
+            case INT:
+                return new IntColumn(field);
+            default:
+                throw new IllegalArgumentException("Unsupported field type: " + field.type);
+        }
+    }
+
+    private int getId(String s) {
+        if (s == null) {
+            return -1;
+        }
+
+        Integer id = dictionaryIds.get(s);
+        if (id == null) {
+            id = dictionary.size();
+            byte[] data = s.getBytes(StandardCharsets.UTF_8);
+            dictionary.add(data);
+            dictionaryBytes += data.length;
+            dictionaryIds.put(s, id);
+        }
+        return id;
+    }
+
+    /**
+     * Adds a record; only the column values are kept, not the record.
+     */
+    public synchronized ColumnarModWriter add(ModMetadata m) {
+        for (Column column : columns) {
+            column.add(m);
+        }
+        count++;
+        return this;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    public synchronized void write(File file) throws IOException {
+        long headerLength = 24;
+        for (Column column : columns) {
+            headerLength += 2 + column.name.getBytes(StandardCharsets.UTF_8).length + 1 + 16;
+        }
+        long dictionaryOffset = headerLength;
+        long offset = dictionaryOffset + 4 + (dictionary.size() + 1) * 4L + dictionaryBytes;
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        File tmpFile = File.createTempFile(file.getName(), ".tmp", parent);
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile.toPath())))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(count);
+                out.writeInt(columns.size());
+                out.writeLong(dictionaryOffset);
+                for (Column column : columns) {
+                    out.writeUTF(column.name);
+                    out.writeByte(column.type);
+                    out.writeLong(offset);
+                    out.writeLong(column.getLength());
+                    offset += column.getLength();
+                }
+
+                out.writeInt(dictionary.size());
+                int dataOffset = 0;
+                out.writeInt(dataOffset);
+                for (byte[] data : dictionary) {
+                    dataOffset += data.length;
+                    out.writeInt(dataOffset);
+                }
+                for (byte[] data : dictionary) {
+                    out.write(data);
+                }
+
+                for (Column column : columns) {
+                    column.write(out);
+                }
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpFile.toPath());
+        }
+    }
+}
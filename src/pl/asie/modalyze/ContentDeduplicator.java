@@ -0,0 +1,138 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Supplier;
+import java.util.zip.ZipEntry;
+
+/**
+ * Makes sure every distinct file or nested archive content is analyzed
+ * only once, handing out copies of the result to every other occurrence.
+ *
+ * Files are fingerprinted by their ZIP central directory, which lists the
+ * CRC32 and sizes of every entry, so only the end of the file has to be
+ * read. Nested archives are fingerprinted by their entry's CRC32 and
+ * sizes.
+ *
+ * Neither fingerprint covers every byte: two files differing only in
+ * their local headers, compressed data or archive comment, or two nested
+ * archives whose CRC32s collide at the same sizes, share one result.
+ * For nested archives this takes a CRC32 collision between archives of
+ * identical sizes. Digests, which must cover every byte, are recomputed
+ * for every path by ModAnalyzer.
+ */
+public class ContentDeduplicator {
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_MIN_LENGTH = 22;
+    private static final int EOCD_MAX_LENGTH = EOCD_MIN_LENGTH + 0xFFFF;
+
+    private final Map<String, CompletableFuture<ModMetadata>> results = new ConcurrentHashMap<>();
+
+    public static String fingerprint(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long length = raf.length();
+            int tailLength = (int) Math.min(length, EOCD_MAX_LENGTH);
+            byte[] tail = new byte[tailLength];
+            raf.seek(length - tailLength);
+            raf.readFully(tail);
+
+            for (int i = tailLength - EOCD_MIN_LENGTH; i >= 0; i--) {
+                if (readInt(tail, i) == EOCD_SIGNATURE) {
+                    long cdLength = readInt(tail, i + 12) & 0xFFFFFFFFL;
+                    long cdOffset = readInt(tail, i + 16) & 0xFFFFFFFFL;
+                    if (cdLength == 0xFFFFFFFFL || cdOffset == 0xFFFFFFFFL || cdOffset + cdLength > length) {
+                        // ZIP64 or damaged - hash the whole file instead.
+                        break;
+                    }
+
+                    MessageDigest digest = DigestUtils.getSha256Digest();
+                    byte[] buffer = new byte[(int) Math.min(cdLength, 65536)];
+                    raf.seek(cdOffset);
+                    long remaining = cdLength;
+                    while (remaining > 0) {
+                        int count = (int) Math.min(buffer.length, remaining);
+                        raf.readFully(buffer, 0, count);
+                        digest.update(buffer, 0, count);
+                        remaining -= count;
+                    }
+                    return "cd:" + length + ":" + Hex.encodeHexString(digest.digest());
+                }
+            }
+        }
+
+        try (InputStream stream = Files.newInputStream(file.toPath())) {
+            return "sha256:" + DigestUtils.sha256Hex(stream);
+        }
+    }
+
+    public static String fingerprint(ZipEntry entry) {
+        if (entry.getCrc() < 0 || entry.getSize() < 0 || entry.getCompressedSize() < 0) {
+            return null;
+        }
+        return "entry:" + entry.getSize() + ":" + entry.getCompressedSize() + ":" + Long.toHexString(entry.getCrc());
+    }
+
+    private static int readInt(byte[] data, int pos) {
+        return (data[pos] & 0xFF) | ((data[pos + 1] & 0xFF) << 8) | ((data[pos + 2] & 0xFF) << 16) | ((data[pos + 3] & 0xFF) << 24);
+    }
+
+    /**
+     * @return A copy of the result for the given fingerprint, running the
+     * analyzer if this is the first time it is seen. Concurrent callers for
+     * the same fingerprint wait for the first one to finish, except on
+     * fork-join workers: a worker joining a nested task may steal the
+     * duplicate's task while the first analysis is lower on its own stack,
+     * so waiting there would never end. Those run the analyzer themselves.
+     */
+    public ModMetadata analyze(String fingerprint, Supplier<ModMetadata> analyzer) {
+        CompletableFuture<ModMetadata> future = results.get(fingerprint);
+        if (future == null) {
+            CompletableFuture<ModMetadata> newFuture = new CompletableFuture<>();
+            future = results.putIfAbsent(fingerprint, newFuture);
+            if (future == null) {
+                future = newFuture;
+                try {
+                    newFuture.complete(analyzer.get());
+                } catch (RuntimeException e) {
+                    results.remove(fingerprint, newFuture);
+                    newFuture.completeExceptionally(e);
+                    throw e;
+                }
+            }
+        }
+
+        if (!future.isDone() && ForkJoinTask.inForkJoinPool()) {
+            return analyzer.get();
+        }
+
+        ModMetadata metadata = future.join();
+        return metadata != null ? metadata.copy() : null;
+    }
+}
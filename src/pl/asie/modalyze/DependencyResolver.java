@@ -0,0 +1,413 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze;
+
+import lombok.Getter;
+
+import java.util.*;
+
+/**
+ * Resolves the dependencies of a set of mods against each other, and
+ * reports missing, conflicting and cyclic dependencies.
+ *
+ * Mods are indexed by every ID they provide (their mod ID and "provides"
+ * list), and by every dependency name they declare, so adding or removing
+ * a mod only checks that mod against the dependencies naming one of its
+ * IDs. Cycles
+ * are found with Tarjan's algorithm over the resolved edges, only when
+ * asked for after the graph changed.
+ */
+public class DependencyResolver {
+    public enum ProblemType {
+        /** No mod provides the dependency. */
+        MISSING,
+        /** Mods provide the dependency, but none in a matching version. */
+        CONFLICTING,
+        /** The mod depends on itself through other mods. */
+        CYCLE
+    }
+
+    public static class Problem {
+        @Getter
+        private final ProblemType type;
+        @Getter
+        private final ModMetadata mod;
+        @Getter
+        private final String dependency, versionSpec;
+        /** The mods providing the dependency, or the mods in the cycle. */
+        @Getter
+        private final List<ModMetadata> mods;
+
+        Problem(ProblemType type, ModMetadata mod, String dependency, String versionSpec, List<ModMetadata> mods) {
+            this.type = type;
+            this.mod = mod;
+            this.dependency = dependency;
+            this.versionSpec = versionSpec;
+            this.mods = mods;
+        }
+
+        @Override
+        public String toString() {
+            switch (type) {
+                case MISSING:
+                    return getName(mod) + " requires " + dependency + "@" + versionSpec + ", which is missing";
+                case CONFLICTING: {
+                    StringBuilder builder = new StringBuilder();
+                    for (ModMetadata m : mods) {
+                        builder.append(builder.length() > 0 ? ", " : "").append(m.version);
+                    }
+                    return getName(mod) + " requires " + dependency + "@" + versionSpec + ", but only version(s) " + builder + " are present";
+                }
+                case CYCLE: {
+                    StringBuilder builder = new StringBuilder();
+                    for (ModMetadata m : mods) {
+                        builder.append(builder.length() > 0 ? " -> " : "").append(getName(m));
+                    }
+                    return "Dependency cycle: " + builder + " -> " + getName(mods.get(0));
+                }
+                default:
+                    return type.toString();
+            }
+        }
+    }
+
+    private static class Node {
+        final ModMetadata mod;
+        // dependency name -> version spec
+        final Map<String, String> declared;
+        // dependency name -> providers in a matching version
+        final Map<String, Set<Node>> resolved = new HashMap<>();
+        int index, lowLink;
+        boolean onStack;
+
+        Node(ModMetadata mod, Map<String, String> declared) {
+            this.mod = mod;
+            this.declared = declared;
+        }
+    }
+
+    private final Set<String> ignored = new HashSet<>(Arrays.asList("minecraft", "Forge", "forge", "FML", "mcp"));
+    private final Map<ModMetadata, Node> nodes = new IdentityHashMap<>();
+    private final Map<String, Set<Node>> providers = new HashMap<>();
+    private final Map<String, Set<Node>> dependents = new HashMap<>();
+    private final Set<Node> unresolved = Collections.newSetFromMap(new IdentityHashMap<>());
+    private List<Problem> cycles;
+
+    private static String getName(ModMetadata m) {
+        String name = m.modid != null ? m.modid : (m.filename != null ? m.filename : "?");
+        return m.version != null ? name + "@" + m.version : name;
+    }
+
+    /**
+     * Adds a dependency name which is provided by the environment rather
+     * than by a mod, and is never resolved; "minecraft", "Forge", "forge",
+     * "FML" and "mcp" are by default.
+     */
+    public DependencyResolver addIgnored(String name) {
+        ignored.add(name);
+        return this;
+    }
+
+    private static Set<String> getProvidedIds(ModMetadata m) {
+        Set<String> ids = new HashSet<>();
+        if (m.modid != null) {
+            ids.add(m.modid);
+        }
+        if (m.provides != null) {
+            ids.addAll(m.provides);
+        }
+        return ids;
+    }
+
+    private Map<String, String> getDeclaredDependencies(ModMetadata m) {
+        Map<String, String> deps = new HashMap<>();
+        if (m.dependencies != null) {
+            for (Map.Entry<String, String> entry : m.dependencies.entrySet()) {
+                if (!ignored.contains(entry.getKey())) {
+                    deps.put(entry.getKey(), entry.getValue() != null ? entry.getValue() : "*");
+                }
+            }
+        }
+        return deps;
+    }
+
+    private void resolve(Node node, String dependency, String versionSpec) {
+        Set<Node> matching = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Node provider : providers.getOrDefault(dependency, Collections.emptySet())) {
+            if (provider != node && ModAnalyzerUtils.isMatchingVersion(versionSpec, provider.mod.version)) {
+                matching.add(provider);
+            }
+        }
+        node.resolved.put(dependency, matching);
+    }
+
+    private void updateUnresolved(Node node) {
+        boolean isUnresolved = false;
+        for (Set<Node> matching : node.resolved.values()) {
+            if (matching.isEmpty()) {
+                isUnresolved = true;
+                break;
+            }
+        }
+        if (isUnresolved) {
+            unresolved.add(node);
+        } else {
+            unresolved.remove(node);
+        }
+    }
+
+    /**
+     * Adds the given provider of an ID to the dependencies on it which its
+     * version matches.
+     */
+    private void addProvider(Node provider, String id) {
+        for (Node dependent : dependents.getOrDefault(id, Collections.emptySet())) {
+            if (dependent != provider && ModAnalyzerUtils.isMatchingVersion(dependent.declared.get(id), provider.mod.version)) {
+                Set<Node> matching = dependent.resolved.get(id);
+                matching.add(provider);
+                if (matching.size() == 1) {
+                    updateUnresolved(dependent);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the given provider of an ID from the dependencies on it.
+     */
+    private void removeProvider(Node provider, String id) {
+        for (Node dependent : dependents.getOrDefault(id, Collections.emptySet())) {
+            Set<Node> matching = dependent.resolved.get(id);
+            if (matching.remove(provider) && matching.isEmpty()) {
+                unresolved.add(dependent);
+            }
+        }
+    }
+
+    public void add(ModMetadata m) {
+        if (nodes.containsKey(m)) {
+            return;
+        }
+
+        Node node = new Node(m, getDeclaredDependencies(m));
+        nodes.put(m, node);
+        Set<String> ids = getProvidedIds(m);
+        for (String id : ids) {
+            providers.computeIfAbsent(id, k -> Collections.newSetFromMap(new IdentityHashMap<>())).add(node);
+        }
+        for (Map.Entry<String, String> entry : node.declared.entrySet()) {
+            dependents.computeIfAbsent(entry.getKey(), k -> Collections.newSetFromMap(new IdentityHashMap<>())).add(node);
+            resolve(node, entry.getKey(), entry.getValue());
+        }
+        updateUnresolved(node);
+
+        for (String id : ids) {
+            addProvider(node, id);
+        }
+        cycles = null;
+    }
+
+    public void addAll(Collection<ModMetadata> mods) {
+        for (ModMetadata m : mods) {
+            add(m);
+        }
+    }
+
+    /**
+     * @return Whether the mod was present.
+     */
+    public boolean remove(ModMetadata m) {
+        Node node = nodes.remove(m);
+        if (node == null) {
+            return false;
+        }
+
+        unresolved.remove(node);
+        Set<String> ids = getProvidedIds(m);
+        for (String id : ids) {
+            Set<Node> set = providers.get(id);
+            set.remove(node);
+            if (set.isEmpty()) {
+                providers.remove(id);
+            }
+        }
+        for (String dependency : node.resolved.keySet()) {
+            Set<Node> set = dependents.get(dependency);
+            set.remove(node);
+            if (set.isEmpty()) {
+                dependents.remove(dependency);
+            }
+        }
+
+        for (String id : ids) {
+            removeProvider(node, id);
+        }
+        cycles = null;
+        return true;
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    /**
+     * @return The mods providing the given ID, in any version.
+     */
+    public List<ModMetadata> getProviders(String id) {
+        List<ModMetadata> list = new ArrayList<>();
+        for (Node node : providers.getOrDefault(id, Collections.emptySet())) {
+            list.add(node.mod);
+        }
+        return list;
+    }
+
+    /**
+     * @return The mods the given mod's dependencies resolve to.
+     */
+    public List<ModMetadata> getDependencies(ModMetadata m) {
+        Node node = nodes.get(m);
+        Set<ModMetadata> set = Collections.newSetFromMap(new IdentityHashMap<>());
+        if (node != null) {
+            for (Set<Node> matching : node.resolved.values()) {
+                for (Node provider : matching) {
+                    set.add(provider.mod);
+                }
+            }
+        }
+        return new ArrayList<>(set);
+    }
+
+    /**
+     * @return The mods with a dependency resolving to the given mod.
+     */
+    public List<ModMetadata> getDependents(ModMetadata m) {
+        Node node = nodes.get(m);
+        Set<ModMetadata> set = Collections.newSetFromMap(new IdentityHashMap<>());
+        if (node != null) {
+            for (String id : getProvidedIds(m)) {
+                for (Node dependent : dependents.getOrDefault(id, Collections.emptySet())) {
+                    if (dependent.resolved.get(id).contains(node)) {
+                        set.add(dependent.mod);
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(set);
+    }
+
+    private void findCycles(Node node, int[] counter, Deque<Node> stack, List<Problem> result) {
+        // iterative Tarjan, as dependency chains can be long
+        Deque<Iterator<Node>> iterators = new ArrayDeque<>();
+        Deque<Node> path = new ArrayDeque<>();
+        node.index = node.lowLink = ++counter[0];
+        stack.push(node);
+        node.onStack = true;
+        path.push(node);
+        iterators.push(getEdges(node).iterator());
+
+        while (!path.isEmpty()) {
+            Node current = path.peek();
+            Iterator<Node> it = iterators.peek();
+            if (it.hasNext()) {
+                Node next = it.next();
+                if (next.index == 0) {
+                    next.index = next.lowLink = ++counter[0];
+                    stack.push(next);
+                    next.onStack = true;
+                    path.push(next);
+                    iterators.push(getEdges(next).iterator());
+                } else if (next.onStack) {
+                    current.lowLink = Math.min(current.lowLink, next.index);
+                }
+                continue;
+            }
+
+            path.pop();
+            iterators.pop();
+            if (!path.isEmpty()) {
+                path.peek().lowLink = Math.min(path.peek().lowLink, current.lowLink);
+            }
+
+            if (current.lowLink == current.index) {
+                List<ModMetadata> component = new ArrayList<>();
+                Node member;
+                do {
+                    member = stack.pop();
+                    member.onStack = false;
+                    component.add(member.mod);
+                } while (member != current);
+
+                if (component.size() > 1) {
+                    Collections.reverse(component);
+                    result.add(new Problem(ProblemType.CYCLE, current.mod, null, null, component));
+                }
+            }
+        }
+    }
+
+    private static List<Node> getEdges(Node node) {
+        List<Node> edges = new ArrayList<>();
+        for (Set<Node> matching : node.resolved.values()) {
+            edges.addAll(matching);
+        }
+        return edges;
+    }
+
+    /**
+     * @return Every group of mods which depend on each other in a cycle,
+     * each reported once.
+     */
+    private List<Problem> getCycles() {
+        if (cycles == null) {
+            List<Problem> result = new ArrayList<>();
+            for (Node node : nodes.values()) {
+                node.index = 0;
+                node.onStack = false;
+            }
+            int[] counter = new int[1];
+            Deque<Node> stack = new ArrayDeque<>();
+            for (Node node : nodes.values()) {
+                if (node.index == 0) {
+                    findCycles(node, counter, stack, result);
+                }
+            }
+            cycles = result;
+        }
+        return cycles;
+    }
+
+    /**
+     * @return Every missing and conflicting dependency, then every cycle.
+     */
+    public List<Problem> getProblems() {
+        List<Problem> problems = new ArrayList<>();
+        for (Node node : unresolved) {
+            for (Map.Entry<String, Set<Node>> entry : node.resolved.entrySet()) {
+                if (!entry.getValue().isEmpty()) {
+                    continue;
+                }
+
+                List<ModMetadata> present = getProviders(entry.getKey());
+                present.remove(node.mod);
+                problems.add(new Problem(present.isEmpty() ? ProblemType.MISSING : ProblemType.CONFLICTING,
+                        node.mod, entry.getKey(), node.declared.get(entry.getKey()), present));
+            }
+        }
+        problems.addAll(getCycles());
+        return problems;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze;
+
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.Checksum;
+
+/**
+ * Computes digests of everything read through it, so that a file can be
+ * analyzed and hashed in the same pass.
+ */
+public class HashingInputStream extends FilterInputStream {
+    public static final String SHA256 = "sha256";
+    public static final String SHA1 = "sha1";
+    public static final String MD5 = "md5";
+    public static final String CRC32 = "crc32";
+
+    private static final Map<String, String> DIGEST_ALGORITHMS = new LinkedHashMap<>();
+
+    private final Map<String, MessageDigest> digests = new LinkedHashMap<>();
+    private final Checksum crc32;
+
+    public HashingInputStream(InputStream in, Collection<String> names) {
+        super(in);
+
+        boolean useCrc32 = false;
+        for (String name : names) {
+            String key = normalize(name);
+            if (CRC32.equals(key)) {
+                useCrc32 = true;
+            } else if (DIGEST_ALGORITHMS.containsKey(key)) {
+                try {
+                    digests.put(key, MessageDigest.getInstance(DIGEST_ALGORITHMS.get(key)));
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalArgumentException("Digest not available: " + name, e);
+                }
+            } else {
+                throw new IllegalArgumentException("Unknown digest: " + name);
+            }
+        }
+        crc32 = useCrc32 ? new java.util.zip.CRC32() : null;
+    }
+
+    public static String normalize(String name) {
+        return name.trim().toLowerCase(Locale.ROOT).replace("-", "");
+    }
+
+    public static boolean isSupported(String name) {
+        String key = normalize(name);
+        return CRC32.equals(key) || DIGEST_ALGORITHMS.containsKey(key);
+    }
+
+    private void update(byte[] b, int off, int len) {
+        for (MessageDigest digest : digests.values()) {
+            digest.update(b, off, len);
+        }
+        if (crc32 != null) {
+            crc32.update(b, off, len);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b >= 0) {
+            for (MessageDigest digest : digests.values()) {
+                digest.update((byte) b);
+            }
+            if (crc32 != null) {
+                crc32.update(b);
+            }
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int count = in.read(b, off, len);
+        if (count > 0) {
+            update(b, off, count);
+        }
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // Skipped bytes still have to be hashed.
+        byte[] buffer = new byte[(int) Math.min(8192, Math.max(n, 1))];
+        long skipped = 0;
+        while (skipped < n) {
+            int count = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if (count < 0) {
+                break;
+            }
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    /**
+     * Reads the remainder of the underlying stream, so that the digests
+     * cover all of it.
+     */
+    public void drain() throws IOException {
+        byte[] buffer = new byte[8192];
+        //noinspection StatementWithEmptyBody
+        while (read(buffer, 0, buffer.length) >= 0) {
+        }
+    }
+
+    public Map<String, String> getHashes() {
+        Map<String, String> hashes = new LinkedHashMap<>();
+        for (Map.Entry<String, MessageDigest> entry : digests.entrySet()) {
+            hashes.put(entry.getKey(), Hex.encodeHexString(entry.getValue().digest()));
+        }
+        if (crc32 != null) {
+            hashes.put(CRC32, String.format("%08x", crc32.getValue()));
+        }
+        return hashes;
+    }
+
+    static {
+        DIGEST_ALGORITHMS.put(SHA256, "SHA-256");
+        DIGEST_ALGORITHMS.put(SHA1, "SHA-1");
+        DIGEST_ALGORITHMS.put(MD5, "MD5");
+    }
+}
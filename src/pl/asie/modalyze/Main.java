@@ -20,24 +20,32 @@ import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
 import pl.asie.modalyze.mcp.MCPDataManager;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.*;
+import java.util.function.Consumer;
 
 public class Main {
     private static class Parameters {
         @Parameter(names = {"-H", "--hash"}, description = "Generate SHA256 hashes of mods")
         private boolean hash = false;
 
+        @Parameter(names = {"-d", "--digest"}, description = "Additional hashes to generate, comma-separated (sha1, md5, crc32)")
+        private List<String> digests = new ArrayList<>();
+
         @Parameter(names = {"-I", "--sort-id"}, description = "Index by mod IDs")
         private boolean sortId = false;
 
         @Parameter(names = {"-F", "--sort-filename"}, description = "Index by mod filenames")
         private boolean sortFilename = false;
 
-        @Parameter(names = {"-f", "--filename"}, description = "Store mod filenames (implied by -F)")
+        @Parameter(names = {"-f", "--filename"}, description = "Store mod filenames (implied by -F and --write-index)")
         private boolean filenames = false;
 
         @Parameter(names = {"-h", "--help"}, description = "Print usage", help = true)
@@ -52,37 +60,244 @@ public class Main {
         @Parameter(names = {"-m", "--mcp"}, description = "Location to MCP (./mcp/ by default)")
         private String mcpPath;
 
+        @Parameter(names = {"-c", "--cache"}, description = "File to cache analysis results in between runs")
+        private String cachePath;
+
+        @Parameter(names = {"--cache-verify-hash"}, description = "Also compare SHA256 hashes when reusing cached results")
+        private boolean cacheVerifyHash;
+
+        @Parameter(names = {"--dedupe"}, description = "Analyze identical files and nested archives only once")
+        private boolean dedupe;
+
+        @Parameter(names = {"--nested-depth"}, description = "Maximum depth of nested archives to analyze (4 by default)")
+        private int nestedDepth = 4;
+
+        @Parameter(names = {"--nested-budget"}, description = "Maximum size of nested archives to analyze per file, in MiB (unlimited by default)")
+        private long nestedBudget = -1;
+
+        @Parameter(names = {"--nested-parallel"}, description = "Analyze nested archives in parallel")
+        private boolean nestedParallel;
+
+        @Parameter(names = {"--mmap"}, description = "Read mod files through memory mapping")
+        private boolean mmap;
+
+        @Parameter(names = {"-T", "--tiered"}, description = "Stop analyzing a mod once its metadata is conclusive, and report how far analysis went")
+        private boolean tiered;
+
+        @Parameter(names = {"--reference-heuristics"}, description = "Also use the fields and methods referenced by classes for Minecraft version heuristics")
+        private boolean referenceHeuristics;
+
+        @Parameter(names = {"--code-heuristics"}, description = "Also use the fields and methods called from method bodies for Minecraft version heuristics")
+        private boolean codeHeuristics;
+
+        @Parameter(names = {"--code-heuristics-classes"}, description = "Maximum number of classes per file to read method bodies of for --code-heuristics (unlimited by default)")
+        private int codeHeuristicsClasses = -1;
+
+        @Parameter(names = {"--code-heuristics-instructions"}, description = "Maximum number of instructions per file to read for --code-heuristics (unlimited by default)")
+        private long codeHeuristicsInstructions = -1;
+
+        @Parameter(names = {"--code-heuristics-time"}, description = "Maximum time per file to spend reading method bodies for --code-heuristics, in milliseconds (unlimited by default)")
+        private long codeHeuristicsTime = -1;
+
+        @Parameter(names = {"--mcp-preload"}, description = "Minecraft versions to load MCP mappings for in the background at startup, comma-separated, or \"all\"")
+        private List<String> mcpPreload = new ArrayList<>();
+
+        @Parameter(names = {"--ndjson"}, description = "Print one JSON record per line for every mod as soon as it is analyzed")
+        private boolean ndjson;
+
+        @Parameter(names = {"--from-ndjson"}, description = "Read the records printed by --ndjson from the input files instead of analyzing them")
+        private boolean fromNdjson;
+
+        @Parameter(names = {"--columnar"}, description = "Also write the results to the given file in a compact binary columnar format")
+        private String columnarPath;
+
+        @Parameter(names = {"--write-index"}, description = "Also write the results to the given file as an index for the query command")
+        private String indexPath;
+
+        @Parameter(names = {"--check-dependencies"}, description = "Resolve the dependencies of the analyzed mods against each other and report missing, conflicting and cyclic ones")
+        private boolean checkDependencies;
+
+        @Parameter(names = {"-j", "--threads"}, description = "Number of threads to analyze mods with (1 by default)")
+        private int threads = 1;
+
         @SuppressWarnings("MismatchedQueryAndUpdateOfCollection")
         @Parameter(description = "Input files and directories")
         private List<String> files = new ArrayList<>();
     }
 
-    private static final Set<ModMetadata> modMetadata = new HashSet<>();
+    // "query" command: look up mods in an index written with --write-index
+    private static class QueryParameters {
+        @Parameter(names = {"--index"}, description = "Index file to query", required = true)
+        private String indexPath;
+
+        @Parameter(names = {"--by"}, description = "Field to look up: modid, provides, dependency, sha256 or filename (modid by default)")
+        private String field = ModIndex.MODID;
+
+        @SuppressWarnings("MismatchedQueryAndUpdateOfCollection")
+        @Parameter(description = "Keys to look up")
+        private List<String> keys = new ArrayList<>();
+    }
+
+    private static final ModMetadataAggregator aggregator = new ModMetadataAggregator();
+    private static final Gson NDJSON_GSON = new GsonBuilder()
+            .registerTypeAdapter(ModMetadata.class, new ModMetadataTypeAdapter())
+            .create();
     private static Parameters parameters = new Parameters();
+    private static QueryParameters queryParameters = new QueryParameters();
+    private static final ContentDeduplicator deduplicator = new ContentDeduplicator();
 
     public static ModAnalyzer analyzer(File file) {
         return new ModAnalyzer(file)
                 .setVersionHeuristics(true)
                 .setGenerateHash(parameters.hash)
+                .setDigests(parameters.digests)
                 .setStoreFilenames(parameters.filenames)
-                .setIsVerbose(parameters.verbose);
+                .setIsVerbose(parameters.verbose)
+                .setDeduplicator(parameters.dedupe ? deduplicator : null)
+                .setMaxNestingDepth(parameters.nestedDepth)
+                .setNestedByteBudget(parameters.nestedBudget >= 0 ? parameters.nestedBudget * 1024 * 1024 : Long.MAX_VALUE)
+                .setParallelNested(parameters.nestedParallel)
+                .setMemoryMapped(parameters.mmap)
+                .setTiered(parameters.tiered)
+                .setReferenceHeuristics(parameters.referenceHeuristics)
+                .setCodeHeuristics(parameters.codeHeuristics)
+                .setCodeHeuristicsMaxClasses(parameters.codeHeuristicsClasses >= 0 ? parameters.codeHeuristicsClasses : Integer.MAX_VALUE)
+                .setCodeHeuristicsMaxInstructions(parameters.codeHeuristicsInstructions >= 0 ? parameters.codeHeuristicsInstructions : Long.MAX_VALUE)
+                .setCodeHeuristicsMaxTime(parameters.codeHeuristicsTime >= 0 ? parameters.codeHeuristicsTime : Long.MAX_VALUE);
     }
 
-    public static void analyzeMods(File file) {
-        if (!file.isDirectory()) {
-            modMetadata.add(analyzer(file).analyze());
-        } else {
-            for (File f : file.listFiles()) {
-                if (f.isDirectory()) {
-                    analyzeMods(f);
-                } else {
-                    modMetadata.add(analyzer(f).analyze());
+    /**
+     * Analyzes the given files, adding the results after those of any
+     * earlier call.
+     */
+    public static void analyzeMods(Collection<File> files) {
+        int offset = aggregator.getNextIndex();
+        analyzeMods(files, (i, m) -> aggregator.add(offset + i, m));
+    }
+
+    /**
+     * Analyzes the given files, passing every result to the consumer as
+     * soon as it is ready; with more than one thread, results come in
+     * completion order and the consumer has to be thread-safe.
+     */
+    public static void streamMods(Collection<File> files, Consumer<ModMetadata> consumer) {
+        analyzeMods(files, (i, m) -> {
+            if (m != null) {
+                consumer.accept(m);
+            }
+        });
+    }
+
+    private static void analyzeMods(Collection<File> files, ModScanner.ResultConsumer consumer) {
+        AnalysisCache cache = null;
+        if (parameters.cachePath != null) {
+            cache = new AnalysisCache(new File(parameters.cachePath), analyzer(null).getFingerprint())
+                    .setVerifyHash(parameters.cacheVerifyHash);
+            cache.load();
+        }
+
+        AnalysisCache scanCache = cache;
+        ModScanner scanner = new ModScanner(scanCache != null
+                ? f -> scanCache.analyze(f, ff -> analyzer(ff).analyze())
+                : f -> analyzer(f).analyze())
+                .setThreads(parameters.threads);
+        scanner.scan(scanner.collectFiles(files), consumer);
+
+        if (cache != null) {
+            try {
+                cache.save();
+            } catch (IOException e) {
+                System.err.println("[WARN] Could not save cache: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Reads records printed by --ndjson, one JSON object per line.
+     */
+    public static void readNdjson(File file, Consumer<ModMetadata> consumer) {
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    consumer.accept(NDJSON_GSON.fromJson(line, ModMetadata.class));
                 }
             }
+        } catch (IOException | JsonParseException e) {
+            System.err.println("[WARN] Could not read " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static void writeColumnar(ColumnarModWriter columnar) {
+        if (columnar != null) {
+            try {
+                columnar.write(new File(parameters.columnarPath));
+            } catch (IOException e) {
+                System.err.println("[ERROR] Could not write " + parameters.columnarPath + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static void writeIndex(ModIndexWriter index) {
+        if (index != null) {
+            try {
+                index.write(new File(parameters.indexPath));
+            } catch (IOException e) {
+                System.err.println("[ERROR] Could not write " + parameters.indexPath + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static void printDependencyProblems(DependencyResolver resolver) {
+        if (resolver != null) {
+            List<String> problems = new ArrayList<>();
+            for (DependencyResolver.Problem problem : resolver.getProblems()) {
+                problems.add(problem.toString());
+            }
+            Collections.sort(problems);
+            for (String s : problems) {
+                System.err.println("[WARN] " + s);
+            }
         }
     }
 
+    private static void query() {
+        if (!ModIndex.FIELDS.contains(queryParameters.field)) {
+            System.err.println("Unknown field: " + queryParameters.field);
+            System.exit(0);
+        }
+
+        ModIndex index;
+        try {
+            index = new ModIndex(new File(queryParameters.indexPath));
+        } catch (IOException e) {
+            System.err.println("[ERROR] Could not read " + queryParameters.indexPath + ": " + e.getMessage());
+            return;
+        }
+
+        Map<String, List<ModMetadata>> results = new LinkedHashMap<>();
+        for (String key : queryParameters.keys) {
+            results.put(key, index.find(queryParameters.field, key));
+        }
+
+        Gson gson = new GsonBuilder()
+                .setPrettyPrinting()
+                .registerTypeAdapter(ModMetadata.class, new ModMetadataTypeAdapter())
+                .create();
+        System.out.println(gson.toJson(results));
+    }
+
     public static void main(String[] args) {
+        // JCommander can't mix commands with main parameters, so the query
+        // command is picked out by hand.
+        if (args.length > 0 && args[0].equals("query")) {
+            JCommander jCommander = new JCommander(queryParameters);
+            jCommander.setProgramName("query");
+            jCommander.parse(Arrays.copyOfRange(args, 1, args.length));
+            query();
+            return;
+        }
+
         JCommander jCommander = new JCommander(parameters);
         jCommander.parse(args);
 
@@ -95,6 +310,14 @@ public class Main {
             parameters.filenames = true;
         }
 
+        if (parameters.indexPath != null) {
+            // the index is looked up by filename and hash as well
+            parameters.filenames = true;
+            if (!parameters.hash && !parameters.fromNdjson) {
+                System.err.println("[WARN] Hashes are not generated without -H, so the index can't be queried by sha256");
+            }
+        }
+
         if (parameters.mcpPath != null && parameters.mcpPath.length() > 0) {
             File f = new File(parameters.mcpPath);
             if (f.isDirectory()) {
@@ -105,103 +328,98 @@ public class Main {
             }
         }
 
+        for (String s : parameters.digests) {
+            if (!HashingInputStream.isSupported(s)) {
+                System.err.println("Unknown digest: " + s);
+                System.exit(0);
+            }
+        }
+
+        if (!parameters.mcpPreload.isEmpty()) {
+            Collection<String> versions = parameters.mcpPreload.contains("all")
+                    ? ModAnalyzer.MCP.getVersions() : parameters.mcpPreload;
+            for (String s : versions) {
+                if (!ModAnalyzer.MCP.getVersions().contains(s)) {
+                    System.err.println("Unknown Minecraft version: " + s);
+                    System.exit(0);
+                }
+            }
+            ModAnalyzer.MCP.preload(versions, Runtime.getRuntime().availableProcessors());
+        }
+
         boolean isDir = false;
+        List<File> files = new ArrayList<>();
         for (String s : parameters.files) {
             File f = new File(s);
             isDir |= f.isDirectory();
-            analyzeMods(f);
+            files.add(f);
+        }
+        aggregator.setKeepUnknown(parameters.unknown);
+        ColumnarModWriter columnar = parameters.columnarPath != null ? new ColumnarModWriter() : null;
+        ModIndexWriter index = parameters.indexPath != null ? new ModIndexWriter() : null;
+        DependencyResolver resolver = parameters.checkDependencies ? new DependencyResolver() : null;
+        if (parameters.ndjson) {
+            streamMods(files, m -> {
+                System.out.println(NDJSON_GSON.toJson(m));
+                if (columnar != null) {
+                    columnar.add(m);
+                }
+                if (index != null) {
+                    index.add(m);
+                }
+                if (resolver != null) {
+                    synchronized (resolver) {
+                        resolver.add(m);
+                    }
+                }
+            });
+            writeColumnar(columnar);
+            writeIndex(index);
+            printDependencyProblems(resolver);
+            return;
+        } else if (parameters.fromNdjson) {
+            int[] record = new int[1];
+            for (File f : files) {
+                readNdjson(f, m -> aggregator.add(record[0]++, m));
+            }
+        } else {
+            analyzeMods(files);
+        }
+
+        if (columnar != null) {
+            for (ModMetadata m : aggregator.getAll()) {
+                columnar.add(m);
+            }
+            writeColumnar(columnar);
+        }
+        if (index != null) {
+            for (ModMetadata m : aggregator.getAll()) {
+                index.add(m);
+            }
+            writeIndex(index);
+        }
+        if (resolver != null) {
+            resolver.addAll(aggregator.getAll());
         }
 
         GsonBuilder gsonBuilder = new GsonBuilder();
         gsonBuilder.setPrettyPrinting();
+        gsonBuilder.registerTypeAdapter(ModMetadata.class, new ModMetadataTypeAdapter());
         Gson gson = gsonBuilder.create();
 
-        if (isDir || parameters.files.size() > 1 || modMetadata.size() > 1) {
+        if (isDir || parameters.files.size() > 1 || aggregator.size() > 1) {
             if (parameters.sortFilename) {
-                Map<String, ModMetadata> metadataMap = new HashMap<>();
-                for (ModMetadata m : modMetadata) {
-                    if (m == null) {
-                        continue;
-                    }
-                    metadataMap.put(m.filename, m);
-                }
-                System.out.println(gson.toJson(metadataMap));
+                System.out.println(gson.toJson(aggregator.getByFilename()));
             } else if (parameters.sortId) {
-                Map<String, List<ModMetadata>> metadataMap = new HashMap<>();
-                for (ModMetadata m : modMetadata) {
-                    if (m == null) {
-                        continue;
-                    }
-                    String key = m.modid;
-                    if (key == null && parameters.unknown) {
-                        int i = 0;
-                        while (metadataMap.containsKey("UNKNOWN-" + i)) {
-                            i++;
-                        }
-                        key = "UNKNOWN-" + i;
-                    }
-                    if (key != null) {
-                        List<ModMetadata> mods = metadataMap.get(key);
-                        if (mods == null) {
-                            mods = new ArrayList<>();
-                            metadataMap.put(key, mods);
-                        }
-                        mods.add(m);
-                    }
-                }
-                for (List<ModMetadata> list : metadataMap.values()) {
-                    list.sort((m1, m2) -> {
-                        if (m1.version == null && m2.version == null) {
-                            return 0;
-                        } else if (m1.version != null && m2.version != null) {
-                            return m1.version.compareTo(m2.version);
-                        } else {
-                            return m1.version != null ? Integer.MAX_VALUE : Integer.MIN_VALUE;
-                        }
-                    });
-                }
-                System.out.println(gson.toJson(metadataMap));
+                System.out.println(gson.toJson(aggregator.getById()));
             } else {
-                Map<String, Map<String, ModMetadata>> metadataMap = new HashMap<>();
-                for (ModMetadata m : modMetadata) {
-                    if (m == null) {
-                        continue;
-                    }
-
-                    String key;
-                    if (m.modid != null) {
-                        key = m.modid;
-                    } else if (!parameters.unknown) {
-                        continue;
-                    } else {
-                        int i = 0;
-                        while (metadataMap.containsKey("UNKNOWN-" + i)) {
-                            i++;
-                        }
-                        key = "UNKNOWN-" + i;
-                    }
-
-                    Map<String, ModMetadata> metadataMap1 = metadataMap.get(key);
-                    if (metadataMap1 == null) {
-                        metadataMap1 = new HashMap<>();
-                        metadataMap.put(key, metadataMap1);
-                    }
-                    if (m.version != null) {
-                        metadataMap1.put(m.version, m);
-                    } else if (parameters.unknown) {
-                        int i = 0;
-                        while (metadataMap1.containsKey("UNKNOWN-" + i)) {
-                            i++;
-                        }
-                        metadataMap1.put("UNKNOWN-" + i, m);
-                    }
-                }
-                System.out.println(gson.toJson(metadataMap));
+                System.out.println(gson.toJson(aggregator.getByIdAndVersion()));
             }
-        } else if (modMetadata.size() >= 1) {
-            System.out.println(gson.toJson(modMetadata.toArray()[0]));
+        } else if (aggregator.size() >= 1) {
+            System.out.println(gson.toJson(aggregator.getFirst()));
         } else {
             System.err.println("[ERROR] No mods found!");
         }
+        printDependencyProblems(resolver);
     }
 }
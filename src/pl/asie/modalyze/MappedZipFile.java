@@ -0,0 +1,322 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * A minimal ZIP reader working on a memory-mapped file. The central
+ * directory is parsed directly from the mapping, and entries are read
+ * into buffers which are reused between calls to {@link #read(Entry)},
+ * so reading classes causes no system calls and no per-entry allocation.
+ *
+ * ZIP64, encrypted and non-deflate entries are not supported and cause a
+ * ZipException, in which case the caller should use ZipFile instead.
+ *
+ * {@link #read(Entry)} is not thread-safe; {@link #openStream(Entry)} is.
+ */
+public class MappedZipFile implements Closeable {
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_MIN_LENGTH = 22;
+
+    public static class Entry {
+        private final String name;
+        private final int method;
+        private final long crc, compressedSize, size, localHeaderOffset;
+
+        private Entry(String name, int method, long crc, long compressedSize, long size, long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        public ZipEntry toZipEntry() {
+            ZipEntry entry = new ZipEntry(name);
+            entry.setMethod(method);
+            entry.setCrc(crc);
+            entry.setCompressedSize(compressedSize);
+            entry.setSize(size);
+            return entry;
+        }
+    }
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final List<Entry> entries;
+    private final Inflater inflater = new Inflater(true);
+    private byte[] inputBuffer = new byte[0];
+    private byte[] outputBuffer = new byte[0];
+
+    public MappedZipFile(File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long length = channel.size();
+            if (length > Integer.MAX_VALUE) {
+                throw new ZipException("File too large to map");
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            buffer = mapped.order(ByteOrder.LITTLE_ENDIAN);
+            entries = Collections.unmodifiableList(readCentralDirectory());
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private List<Entry> readCentralDirectory() throws ZipException {
+        int length = buffer.limit();
+        int eocd = -1;
+        for (int i = length - EOCD_MIN_LENGTH; i >= Math.max(0, length - EOCD_MIN_LENGTH - 0xFFFF); i--) {
+            if (buffer.getInt(i) == EOCD_SIGNATURE) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new ZipException("End of central directory not found");
+        }
+
+        long cdLength = buffer.getInt(eocd + 12) & 0xFFFFFFFFL;
+        long cdOffset = buffer.getInt(eocd + 16) & 0xFFFFFFFFL;
+        if (cdOffset + cdLength > eocd) {
+            throw new ZipException("Invalid or ZIP64 central directory");
+        }
+
+        List<Entry> list = new ArrayList<>();
+        int pos = (int) cdOffset;
+        int end = (int) (cdOffset + cdLength);
+        while (pos + 46 <= end) {
+            if (buffer.getInt(pos) != CENTRAL_SIGNATURE) {
+                throw new ZipException("Invalid central directory entry");
+            }
+
+            int flags = buffer.getShort(pos + 8) & 0xFFFF;
+            int method = buffer.getShort(pos + 10) & 0xFFFF;
+            long crc = buffer.getInt(pos + 16) & 0xFFFFFFFFL;
+            long compressedSize = buffer.getInt(pos + 20) & 0xFFFFFFFFL;
+            long size = buffer.getInt(pos + 24) & 0xFFFFFFFFL;
+            int nameLength = buffer.getShort(pos + 28) & 0xFFFF;
+            int extraLength = buffer.getShort(pos + 30) & 0xFFFF;
+            int commentLength = buffer.getShort(pos + 32) & 0xFFFF;
+            long localHeaderOffset = buffer.getInt(pos + 42) & 0xFFFFFFFFL;
+
+            if ((flags & 1) != 0) {
+                throw new ZipException("Encrypted entries are not supported");
+            }
+            if (method != ZipEntry.STORED && method != ZipEntry.DEFLATED) {
+                throw new ZipException("Unsupported compression method " + method);
+            }
+            if (compressedSize == 0xFFFFFFFFL || size == 0xFFFFFFFFL || localHeaderOffset == 0xFFFFFFFFL) {
+                throw new ZipException("ZIP64 entries are not supported");
+            }
+
+            if (pos + 46L + nameLength + extraLength + commentLength > end) {
+                throw new ZipException("Truncated central directory entry");
+            }
+
+            byte[] nameBytes = new byte[nameLength];
+            ByteBuffer nameBuffer = buffer.duplicate();
+            nameBuffer.position(pos + 46);
+            nameBuffer.get(nameBytes);
+
+            list.add(new Entry(new String(nameBytes, StandardCharsets.UTF_8), method, crc, compressedSize, size, localHeaderOffset));
+            pos += 46 + nameLength + extraLength + commentLength;
+        }
+        return list;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    private int getDataOffset(Entry entry) throws ZipException {
+        // offsets come from the file, so check them in long arithmetic
+        // before they are narrowed to buffer positions
+        long pos = entry.localHeaderOffset;
+        if (pos + 30 > buffer.limit() || buffer.getInt((int) pos) != LOCAL_SIGNATURE) {
+            throw new ZipException("Invalid local header for " + entry.name);
+        }
+        long offset = pos + 30 + (buffer.getShort((int) pos + 26) & 0xFFFF) + (buffer.getShort((int) pos + 28) & 0xFFFF);
+        if (offset + entry.compressedSize > buffer.limit()) {
+            throw new ZipException("Truncated entry " + entry.name);
+        }
+        return (int) offset;
+    }
+
+    private ByteBuffer slice(Entry entry) throws ZipException {
+        ByteBuffer data = buffer.duplicate();
+        int offset = getDataOffset(entry);
+        data.limit(offset + (int) entry.compressedSize);
+        data.position(offset);
+        return data.slice();
+    }
+
+    private static void inflate(Inflater inflater, byte[] input, int inputLength, byte[] output, Entry entry) throws ZipException {
+        inflater.reset();
+        inflater.setInput(input, 0, inputLength);
+        int count = 0;
+        try {
+            while (count < entry.size) {
+                int n = inflater.inflate(output, count, (int) entry.size - count);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                count += n;
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException("Invalid deflate data in " + entry.name + ": " + e.getMessage());
+        }
+        if (count != entry.size) {
+            throw new ZipException("Truncated deflate data in " + entry.name);
+        }
+    }
+
+    /**
+     * Reads an entry into a buffer reused between calls; only the first
+     * {@link Entry#getSize()} bytes of the returned array are valid, and
+     * only until the next call.
+     */
+    public byte[] read(Entry entry) throws IOException {
+        if (entry.size > Integer.MAX_VALUE - 8) {
+            throw new ZipException("Entry too large: " + entry.name);
+        }
+        if (outputBuffer.length < entry.size) {
+            outputBuffer = new byte[(int) Math.max(entry.size, outputBuffer.length * 2L)];
+        }
+
+        ByteBuffer data = slice(entry);
+        if (entry.method == ZipEntry.STORED) {
+            if (entry.compressedSize != entry.size) {
+                throw new ZipException("Invalid stored entry " + entry.name);
+            }
+            data.get(outputBuffer, 0, (int) entry.size);
+        } else {
+            int inputLength = data.remaining();
+            if (inputBuffer.length < inputLength + 1) {
+                inputBuffer = new byte[Math.max(inputLength + 1, inputBuffer.length * 2)];
+            }
+            data.get(inputBuffer, 0, inputLength);
+            // A trailing dummy byte lets nowrap inflaters finish, like ZipFile does.
+            inputBuffer[inputLength] = 0;
+            inflate(inflater, inputBuffer, inputLength + 1, outputBuffer, entry);
+        }
+        return outputBuffer;
+    }
+
+    /**
+     * Opens an independent stream over an entry; stored entries are read
+     * straight from the mapping.
+     */
+    public InputStream openStream(Entry entry) throws IOException {
+        ByteBuffer data = slice(entry);
+        if (entry.method == ZipEntry.STORED) {
+            return new ByteBufferInputStream(data);
+        }
+
+        if (entry.size > Integer.MAX_VALUE - 8) {
+            throw new ZipException("Entry too large: " + entry.name);
+        }
+        byte[] input = new byte[data.remaining() + 1];
+        data.get(input, 0, input.length - 1);
+        byte[] output = new byte[(int) entry.size];
+        Inflater streamInflater = new Inflater(true);
+        try {
+            inflate(streamInflater, input, input.length, output, entry);
+        } finally {
+            streamInflater.end();
+        }
+        return new ByteArrayInputStream(output);
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        channel.close();
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer data;
+
+        ByteBufferInputStream(ByteBuffer data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read() {
+            return data.hasRemaining() ? (data.get() & 0xFF) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!data.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(len, data.remaining());
+            data.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            int count = (int) Math.max(0, Math.min(n, data.remaining()));
+            data.position(data.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return data.remaining();
+        }
+    }
+}
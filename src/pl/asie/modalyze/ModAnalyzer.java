@@ -16,14 +16,15 @@
 
 package pl.asie.modalyze;
 
-import org.apache.commons.codec.digest.DigestUtils;
 import org.objectweb.asm.*;
 import pl.asie.modalyze.mcp.MCPDataManager;
 import pl.asie.modalyze.mcp.MCPUtils;
+import pl.asie.modalyze.util.ClassProcessorDispatcher;
 import pl.asie.modalyze.util.ForgeModClassesProcessor;
 import pl.asie.modalyze.util.MCPHeuristicsProcessor;
 import pl.asie.modalyze.util.ModLoaderClassesProcessor;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
@@ -31,17 +32,30 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 public class ModAnalyzer {
+    // Bump whenever a change to the analyzer alters its results.
+    public static final int REVISION = 7;
     public static final MCPDataManager MCP = new MCPDataManager();
     private final File file;
-    private boolean versionHeuristics, generateHash, storeFilenames, isVerbose;
+    private String name;
+    private boolean versionHeuristics, generateHash, storeFilenames, isVerbose, parallelNested, memoryMapped, tiered, referenceHeuristics, codeHeuristics;
+    private Collection<String> digests = Collections.emptyList();
+    private ContentDeduplicator deduplicator;
+    private int depth, maxNestingDepth = 4;
+    private long nestedByteBudget = Long.MAX_VALUE;
+    private int codeHeuristicsMaxClasses = Integer.MAX_VALUE;
+    private long codeHeuristicsMaxInstructions = Long.MAX_VALUE, codeHeuristicsMaxTime = Long.MAX_VALUE;
+    private AtomicLong nestedBytesRemaining;
 
     public ModAnalyzer(File file) {
         this.file = file;
+        this.name = file != null ? file.getName() : null;
     }
 
     public ModAnalyzer setGenerateHash(boolean gh) {
@@ -49,6 +63,11 @@ public class ModAnalyzer {
         return this;
     }
 
+    public ModAnalyzer setDigests(Collection<String> d) {
+        digests = d;
+        return this;
+    }
+
     public ModAnalyzer setVersionHeuristics(boolean v) {
         versionHeuristics = v;
         return this;
@@ -64,6 +83,113 @@ public class ModAnalyzer {
         return this;
     }
 
+    public ModAnalyzer setDeduplicator(ContentDeduplicator d) {
+        deduplicator = d;
+        return this;
+    }
+
+    public ModAnalyzer setMemoryMapped(boolean mm) {
+        memoryMapped = mm;
+        return this;
+    }
+
+    public ModAnalyzer setTiered(boolean t) {
+        tiered = t;
+        return this;
+    }
+
+    public ModAnalyzer setReferenceHeuristics(boolean rh) {
+        referenceHeuristics = rh;
+        return this;
+    }
+
+    public ModAnalyzer setCodeHeuristics(boolean ch) {
+        codeHeuristics = ch;
+        return this;
+    }
+
+    public ModAnalyzer setCodeHeuristicsMaxClasses(int c) {
+        codeHeuristicsMaxClasses = c;
+        return this;
+    }
+
+    public ModAnalyzer setCodeHeuristicsMaxInstructions(long i) {
+        codeHeuristicsMaxInstructions = i;
+        return this;
+    }
+
+    /**
+     * @param t The time budget for visiting method bodies per file, in
+     * milliseconds.
+     */
+    public ModAnalyzer setCodeHeuristicsMaxTime(long t) {
+        codeHeuristicsMaxTime = t;
+        return this;
+    }
+
+    public ModAnalyzer setMaxNestingDepth(int d) {
+        maxNestingDepth = d;
+        return this;
+    }
+
+    public ModAnalyzer setNestedByteBudget(long b) {
+        nestedByteBudget = b;
+        return this;
+    }
+
+    public ModAnalyzer setParallelNested(boolean p) {
+        parallelNested = p;
+        return this;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    int getDepth() {
+        return depth;
+    }
+
+    int getMaxNestingDepth() {
+        return maxNestingDepth;
+    }
+
+    boolean isParallelNested() {
+        return parallelNested;
+    }
+
+    boolean isVerbose() {
+        return isVerbose;
+    }
+
+    ContentDeduplicator getDeduplicator() {
+        return deduplicator;
+    }
+
+    ModAnalyzer createNestedAnalyzer(String entryName, AtomicLong bytesRemaining) {
+        ModAnalyzer analyzer = new ModAnalyzer(null)
+                .setVersionHeuristics(versionHeuristics)
+                .setGenerateHash(generateHash)
+                .setDigests(digests)
+                .setStoreFilenames(storeFilenames)
+                .setIsVerbose(isVerbose)
+                .setDeduplicator(deduplicator)
+                .setMaxNestingDepth(maxNestingDepth)
+                .setNestedByteBudget(nestedByteBudget)
+                .setParallelNested(parallelNested)
+                .setMemoryMapped(memoryMapped)
+                .setTiered(tiered)
+                .setReferenceHeuristics(referenceHeuristics)
+                .setCodeHeuristics(codeHeuristics)
+                .setCodeHeuristicsMaxClasses(codeHeuristicsMaxClasses)
+                .setCodeHeuristicsMaxInstructions(codeHeuristicsMaxInstructions)
+                .setCodeHeuristicsMaxTime(codeHeuristicsMaxTime);
+        analyzer.name = (name != null ? name : "?") + "!/" + entryName;
+        analyzer.depth = depth + 1;
+        analyzer.nestedBytesRemaining = bytesRemaining;
+        return analyzer;
+    }
+
     private ModMetadata getOrCreate(Map<String, ModMetadata> metaMap, String id) {
         ModMetadata metadata = metaMap.get(id);
         if (metadata == null) {
@@ -126,46 +252,210 @@ public class ModAnalyzer {
         }
     }
 
+    /**
+     * @return A string identifying everything (other than the input file)
+     * which the results of this analyzer depend on.
+     */
+    public String getFingerprint() {
+        return "r" + REVISION
+                + ";heuristics=" + versionHeuristics + "," + referenceHeuristics
+                + (codeHeuristics ? ";code=" + codeHeuristicsMaxClasses + "," + codeHeuristicsMaxInstructions + "," + codeHeuristicsMaxTime : "")
+                + ";hash=" + generateHash
+                + ";digests=" + String.join(",", getDigestNames())
+                + ";filenames=" + storeFilenames
+                + ";nested=" + maxNestingDepth + "," + nestedByteBudget
+                + ";tiered=" + tiered
+                + (versionHeuristics ? ";mcp=" + MCP.getFingerprint() : "");
+    }
+
+    private boolean isHashing() {
+        return generateHash || !digests.isEmpty();
+    }
+
+    private Collection<String> getDigestNames() {
+        List<String> names = new ArrayList<>();
+        if (generateHash) {
+            names.add(HashingInputStream.SHA256);
+        }
+        for (String s : digests) {
+            String name = HashingInputStream.normalize(s);
+            if (!names.contains(name)) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    private void appendHashes(ModMetadata metadata, Map<String, String> hashes) {
+        for (Map.Entry<String, String> entry : hashes.entrySet()) {
+            if (HashingInputStream.SHA256.equals(entry.getKey()) && generateHash) {
+                metadata.sha256 = entry.getValue();
+            } else {
+                if (metadata.hashes == null) {
+                    metadata.hashes = new LinkedHashMap<>();
+                }
+                metadata.hashes.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Replaces the digests of a result copied from another file with the
+     * digests of this one, as the deduplicator's fingerprint doesn't cover
+     * every byte.
+     */
+    void rehash(ModMetadata metadata, InputStream stream) throws IOException {
+        if (!isHashing()) {
+            return;
+        }
+
+        HashingInputStream hashingStream = new HashingInputStream(stream, getDigestNames());
+        hashingStream.drain();
+        metadata.sha256 = null;
+        metadata.hashes = null;
+        appendHashes(metadata, hashingStream.getHashes());
+    }
+
     public ModMetadata analyze() {
-        try {
-            return analyze(new ZipInputStream(new FileInputStream(file)));
+        if (deduplicator != null) {
+            try {
+                boolean[] analyzed = new boolean[1];
+                ModMetadata metadata = deduplicator.analyze(ContentDeduplicator.fingerprint(file), () -> {
+                    analyzed[0] = true;
+                    return analyzeFile();
+                });
+                if (metadata != null) {
+                    if (!analyzed[0]) {
+                        try (InputStream stream = new BufferedInputStream(new FileInputStream(file))) {
+                            rehash(metadata, stream);
+                        }
+                    }
+                    metadata.version = null;
+                    appendFileDetails(metadata);
+                }
+                return metadata;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+
+        return analyzeFile();
+    }
+
+    private ModMetadata analyzeFile() {
+        if (isHashing()) {
+            // Hashing needs every byte anyway, so analyze while streaming
+            // the file through the digests instead of reading it twice.
+            try (InputStream stream = new BufferedInputStream(new FileInputStream(file))) {
+                return analyze(stream);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+
+        if (memoryMapped) {
+            try (MappedZipFile zipFile = new MappedZipFile(file)) {
+                return analyzeEntries(getEntries(zipFile));
+            } catch (IOException | RuntimeException e) {
+                // Not supported by the mapped reader, or damaged - use ZipFile
+                // instead, which skips what it can't read.
+            }
+        }
+
+        try (ZipFile zipFile = new ZipFile(file)) {
+            return analyze(zipFile);
+        } catch (ZipException e) {
+            // No readable central directory - fall back to scanning local headers.
+            try (InputStream stream = new FileInputStream(file)) {
+                return analyze(new ZipInputStream(stream));
+            } catch (IOException ee) {
+                ee.printStackTrace();
+                return null;
+            }
         } catch (IOException e) {
             e.printStackTrace();
             return null;
         }
     }
 
-    public ModMetadata analyze(ZipInputStream stream) {
-        List<ModMetadata> recursiveMods = new ArrayList<>();
-        ModMetadata metadata = new ModMetadata();
-        MCPHeuristicsProcessor mcpHeuristicsProcessor = new MCPHeuristicsProcessor(metadata);
-        ModLoaderClassesProcessor modLoaderClassesProcessor = new ModLoaderClassesProcessor(metadata);
-        ForgeModClassesProcessor forgeModClassesProcessor = new ForgeModClassesProcessor(metadata);
+    public ModMetadata analyze(ZipFile zipFile) {
+        List<ArchiveEntry> list = new ArrayList<>();
+        Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            if (!entry.isDirectory() && isAnalyzedEntry(entry.getName())) {
+                list.add(new ArchiveEntry(entry, () -> zipFile.getInputStream(entry), () -> {
+                    try (InputStream stream = zipFile.getInputStream(entry)) {
+                        return new ClassReader(stream);
+                    }
+                }));
+            }
+        }
+
+        return analyze(list);
+    }
+
+    public ModMetadata analyze(MappedZipFile zipFile) {
+        return analyze(getEntries(zipFile));
+    }
+
+    private List<ArchiveEntry> getEntries(MappedZipFile zipFile) {
+        List<ArchiveEntry> list = new ArrayList<>();
+        for (MappedZipFile.Entry entry : zipFile.getEntries()) {
+            if (!entry.isDirectory() && isAnalyzedEntry(entry.getName())) {
+                list.add(new ArchiveEntry(entry.toZipEntry(), () -> zipFile.openStream(entry),
+                        () -> new ClassReader(zipFile.read(entry), 0, (int) entry.getSize())));
+            }
+        }
+        return list;
+    }
 
-        if (isVerbose) {
-            System.err.println("[*] " + file.toString());
+    private ModMetadata analyze(List<ArchiveEntry> entries) {
+        try {
+            return analyzeEntries(entries);
+        } catch (ZipException exception) {
+            return null;
+        } catch (IOException exception) {
+            exception.printStackTrace();
+            return null;
         }
+    }
+
+    private ModMetadata analyzeEntries(List<ArchiveEntry> entries) throws IOException {
+        Analysis analysis = new Analysis();
+        if (tiered) {
+            analysis.appendTiered(entries);
+        } else {
+            for (ArchiveEntry entry : entries) {
+                analysis.append(entry);
+            }
+        }
+        return finish(analysis);
+    }
+
+    public ModMetadata analyze(InputStream stream) throws IOException {
+        if (!isHashing()) {
+            return analyze(new ZipInputStream(stream));
+        }
+
+        HashingInputStream hashingStream = new HashingInputStream(stream, getDigestNames());
+        ModMetadata metadata = analyze(new ZipInputStream(hashingStream));
+        hashingStream.drain();
+        if (metadata != null) {
+            appendHashes(metadata, hashingStream.getHashes());
+        }
+        return metadata;
+    }
+
+    public ModMetadata analyze(ZipInputStream stream) {
+        Analysis analysis = new Analysis();
 
         try {
             ZipEntry entry;
             while ((entry = stream.getNextEntry()) != null) {
-                if (entry.getName().equals("mcmod.info")) {
-                    appendMcmodInfo(metadata, stream);
-                } else if (entry.getName().endsWith(".class")) {
-                    ClassReader reader = new ClassReader(stream);
-                    if (versionHeuristics) {
-                        reader.accept(mcpHeuristicsProcessor.getClassVisitor(), ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
-                    }
-                    reader.accept(modLoaderClassesProcessor.getClassVisitor(), ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
-                    reader.accept(forgeModClassesProcessor.getClassVisitor(), ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
-                } else if (entry.getName().endsWith(".zip") || entry.getName().endsWith(".jar")) {
-                    ModMetadata meta = Main.analyzer(null).analyze(new ZipInputStream(stream));
-                    if (meta != null && meta.valid) {
-                        recursiveMods.add(meta);
-                    }
-                } else if (entry.getName().equals("META-INF/MANIFEST.MF")) {
-                    appendManifest(metadata, stream);
-                }
+                analysis.appendEntry(entry, stream);
             }
         } catch (ZipException exception) {
             return null;
@@ -174,6 +464,195 @@ public class ModAnalyzer {
             return null;
         }
 
+        return finish(analysis);
+    }
+
+    private static boolean isAnalyzedEntry(String name) {
+        return name.equals("mcmod.info") || name.equals("META-INF/MANIFEST.MF")
+                || name.endsWith(".class") || NestedArchiveAnalyzer.isNestedArchive(name);
+    }
+
+    private interface ClassSource {
+        ClassReader read() throws IOException;
+    }
+
+    private static class ArchiveEntry {
+        private final ZipEntry entry;
+        private final NestedArchiveAnalyzer.StreamSource source;
+        private final ClassSource classSource;
+
+        private ArchiveEntry(ZipEntry entry, NestedArchiveAnalyzer.StreamSource source, ClassSource classSource) {
+            this.entry = entry;
+            this.source = source;
+            this.classSource = classSource;
+        }
+
+        private boolean isClass() {
+            return entry.getName().endsWith(".class");
+        }
+    }
+
+    private boolean isVersionResolved(ModMetadata metadata) {
+        String mcVersion = metadata.dependencies != null ? metadata.dependencies.get("minecraft") : null;
+        return mcVersion != null && !mcVersion.equals("*")
+                && (metadata.side != null || !MCP.hasSides(mcVersion));
+    }
+
+    private boolean isResolved(ModMetadata metadata) {
+        return metadata.modid != null && !metadata.getVersionCandidates().isEmpty() && isVersionResolved(metadata);
+    }
+
+    private class Analysis {
+        private final NestedArchiveAnalyzer nestedArchives = new NestedArchiveAnalyzer(ModAnalyzer.this,
+                nestedBytesRemaining != null ? nestedBytesRemaining : new AtomicLong(nestedByteBudget));
+        private final ModMetadata metadata = new ModMetadata();
+        private final MCPHeuristicsProcessor mcpHeuristicsProcessor = new MCPHeuristicsProcessor(metadata);
+        private final ModLoaderClassesProcessor modLoaderClassesProcessor = new ModLoaderClassesProcessor(metadata);
+        private final ForgeModClassesProcessor forgeModClassesProcessor = new ForgeModClassesProcessor(metadata);
+        private final ClassProcessorDispatcher classProcessors = new ClassProcessorDispatcher();
+        private int tier;
+        private int classVersion;
+        private Set<String> lastHeuristicVersions;
+
+        private Analysis() {
+            if (versionHeuristics) {
+                mcpHeuristicsProcessor.setCollectReferences(referenceHeuristics)
+                        .setCollectCallSites(codeHeuristics)
+                        .setMaxClasses(codeHeuristicsMaxClasses)
+                        .setMaxInstructions(codeHeuristicsMaxInstructions)
+                        .setMaxTime(codeHeuristicsMaxTime)
+                        .setSettled(this::isHeuristicsSettled);
+                classProcessors.add(mcpHeuristicsProcessor);
+            }
+            classProcessors.add(modLoaderClassesProcessor).add(forgeModClassesProcessor);
+
+            if (isVerbose) {
+                System.err.println("[*] " + (file != null ? file.toString() : name));
+            }
+        }
+
+        /**
+         * The heuristics are settled once the version is known without them,
+         * or once the keys point at a single version twice in a row.
+         */
+        private boolean isHeuristicsSettled(Set<String> keys) {
+            if (isVersionResolved(metadata)) {
+                return true;
+            }
+
+            Set<String> versions = MCP.getVersionsForKeySet(keys, getCandidateVersions(this, metadata));
+            boolean settled = versions != null && versions.equals(lastHeuristicVersions)
+                    && versions.stream().map(s -> Version.of(s).getBase()).distinct().count() == 1;
+            lastHeuristicVersions = versions;
+            return settled;
+        }
+
+        private void acceptClass(ClassProcessorDispatcher dispatcher, String name, ClassReader reader) {
+            // module descriptors and multi-release classes are only loaded by
+            // newer Java versions, so they say nothing about the mod itself
+            if (!name.endsWith("module-info.class") && !name.startsWith("META-INF/versions/")) {
+                // major_version of the class file; readers always start at offset 0 here
+                classVersion = Math.max(classVersion, reader.readUnsignedShort(6));
+            }
+            dispatcher.accept(reader);
+        }
+
+        private void append(ArchiveEntry entry) throws IOException {
+            if (entry.isClass()) {
+                acceptClass(classProcessors, entry.entry.getName(), entry.classSource.read());
+            } else if (NestedArchiveAnalyzer.isNestedArchive(entry.entry.getName())) {
+                nestedArchives.append(entry.entry, entry.source);
+            } else {
+                try (InputStream stream = entry.source.open()) {
+                    appendEntry(entry.entry, stream);
+                }
+            }
+        }
+
+        /**
+         * Tier 1 reads the metadata files only; tier 2 scans classes until
+         * the metadata is resolved, then nested archives if no mod was found;
+         * tier 3 collects heuristic keys from the remaining classes if the
+         * Minecraft version or side is still unknown.
+         */
+        private void appendTiered(List<ArchiveEntry> entries) throws IOException {
+            List<ArchiveEntry> classes = new ArrayList<>();
+            List<ArchiveEntry> nested = new ArrayList<>();
+
+            tier = 1;
+            for (ArchiveEntry entry : entries) {
+                if (entry.isClass()) {
+                    classes.add(entry);
+                } else if (NestedArchiveAnalyzer.isNestedArchive(entry.entry.getName())) {
+                    nested.add(entry);
+                } else {
+                    append(entry);
+                }
+            }
+
+            if (isResolved(metadata)) {
+                return;
+            }
+
+            tier = 2;
+            int i = 0;
+            while (i < classes.size() && !isResolved(metadata)) {
+                ArchiveEntry entry = classes.get(i++);
+                acceptClass(classProcessors, entry.entry.getName(), entry.classSource.read());
+            }
+
+            if (!metadata.valid) {
+                for (ArchiveEntry entry : nested) {
+                    append(entry);
+                }
+            }
+
+            if (versionHeuristics && i < classes.size() && !isVersionResolved(metadata)) {
+                tier = 3;
+                ClassProcessorDispatcher heuristics = new ClassProcessorDispatcher().add(mcpHeuristicsProcessor);
+                for (; i < classes.size(); i++) {
+                    acceptClass(heuristics, classes.get(i).entry.getName(), classes.get(i).classSource.read());
+                }
+            }
+        }
+
+        private void appendEntry(ZipEntry entry, InputStream stream) throws IOException {
+            String name = entry.getName();
+            if (name.equals("mcmod.info")) {
+                appendMcmodInfo(metadata, stream);
+            } else if (name.endsWith(".class")) {
+                acceptClass(classProcessors, name, new ClassReader(stream));
+            } else if (NestedArchiveAnalyzer.isNestedArchive(name)) {
+                nestedArchives.append(entry, stream);
+            } else if (name.equals("META-INF/MANIFEST.MF")) {
+                appendManifest(metadata, stream);
+            }
+        }
+    }
+
+    /**
+     * @return The Minecraft versions the mod may be for, going by its
+     * annotations, declared Minecraft dependency and class file version;
+     * only these are scored by the heuristics.
+     */
+    private Collection<String> getCandidateVersions(Analysis analysis, ModMetadata metadata) {
+        String mcVersion = metadata.dependencies != null ? metadata.dependencies.get("minecraft") : null;
+        VersionRange mcRange = mcVersion != null ? VersionRange.of(mcVersion) : null;
+        List<String> versions = new ArrayList<>();
+        for (String version : MCP.getVersions()) {
+            if (analysis.forgeModClassesProcessor.isMatchingMinecraftVersion(version)
+                    && (mcRange == null || mcRange.containsMcLine(Version.of(version)))
+                    && MCP.isMatchingClassVersion(version, analysis.classVersion)) {
+                versions.add(version);
+            }
+        }
+        return versions;
+    }
+
+    private ModMetadata finish(Analysis analysis) {
+        List<ModMetadata> recursiveMods = analysis.nestedArchives.getResults();
+        ModMetadata metadata = analysis.metadata;
+
         if (!metadata.valid) {
             if (recursiveMods.size() == 1) {
                 metadata = recursiveMods.get(0);
@@ -224,41 +703,42 @@ public class ModAnalyzer {
         if (versionHeuristics) {
             if (metadata.side == null || metadata.dependencies == null || !metadata.dependencies.containsKey("minecraft")
                     || metadata.dependencies.get("minecraft").equals("*")) {
-                Set<String> versions = new HashSet<>();
+                Set<Version> versions = new TreeSet<>();
                 String version;
                 boolean hasClient = false, hasServer = false;
-                Collection<String> heuristicVersions = MCP.getVersionsForKeySet(mcpHeuristicsProcessor.getKeys());
+                Collection<String> heuristicVersions = MCP.getVersionsForKeySet(analysis.mcpHeuristicsProcessor.getKeys(),
+                        getCandidateVersions(analysis, metadata));
                 if (heuristicVersions != null) {
                     for (String s : heuristicVersions) {
-                        if (!forgeModClassesProcessor.isMatchingMinecraftVersion(s)) {
-                            continue;
-                        }
-
-                        if (s.endsWith("-client")) {
+                        Version v = Version.of(s);
+                        if ("client".equals(v.getSuffix())) {
                             hasClient = true;
-                        } else if (s.endsWith("-server")) {
+                        } else if ("server".equals(v.getSuffix())) {
                             hasServer = true;
                         }
-                        versions.add(s.split("-")[0]);
+                        versions.add(Version.of(v.getBase()));
                     }
 
                     if (versions.size() == 1) {
-                        version = versions.iterator().next();
+                        version = versions.iterator().next().getString();
                     } else {
-                        version = Arrays.toString(versions.toArray(new String[0]));
+                        version = Arrays.toString(versions.toArray());
                         version = version.replace('[', '{');
                         version = version.replace(']', '}');
                     }
 
                     boolean hasSides = false;
-                    for (String s : versions) {
-                        if (MCP.hasSides(s)) {
+                    for (Version v : versions) {
+                        if (MCP.hasSides(v.getString())) {
                             hasSides = true;
                             break;
                         }
                     }
 
                     String side = (!hasSides || hasClient == hasServer) ? "universal" : (hasClient ? "client" : "server");
+                    if (analysis.tier > 0) {
+                        analysis.tier = 3;
+                    }
                     metadata.valid = true;
                     metadata.side = side;
                     metadata.addModLoaderStyleDependency("minecraft@" + version);
@@ -266,9 +746,18 @@ public class ModAnalyzer {
             }
         }
 
+        if (analysis.tier > 0) {
+            metadata.tier = analysis.tier;
+        }
+
+        appendFileDetails(metadata);
+        return metadata;
+    }
+
+    private void appendFileDetails(ModMetadata metadata) {
         List<String> versionsFound = metadata.getVersionCandidates();
         if (versionsFound.size() > 1) {
-            String filename = file.getName();
+            String filename = name != null ? name.substring(name.lastIndexOf('/') + 1) : "";
             List<String> vfFilename = new ArrayList<>();
             for (String s : versionsFound) {
                 if (filename.contains(s)) {
@@ -293,7 +782,7 @@ public class ModAnalyzer {
                 if (longestCount == 1) {
                     metadata.version = longest;
                 } else {
-                    Collections.sort(versionsFound);
+                    versionsFound.sort(Comparator.comparing(Version::of));
                     metadata.version = versionsFound.get(versionsFound.size() - 1);
                 }
             }
@@ -301,18 +790,8 @@ public class ModAnalyzer {
             metadata.version = versionsFound.get(0);
         }
 
-        if (generateHash) {
-            try {
-                metadata.sha256 = DigestUtils.sha256Hex(new FileInputStream(file));
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
-
-        if (storeFilenames) {
-            metadata.filename = file.getName();
+        if (storeFilenames && name != null) {
+            metadata.filename = name;
         }
-
-        return metadata;
     }
 }
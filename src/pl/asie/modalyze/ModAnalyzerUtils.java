@@ -17,7 +17,9 @@
 package pl.asie.modalyze;
 
 import java.io.File;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 
@@ -31,6 +33,14 @@ public final class ModAnalyzerUtils {
         return !version.toLowerCase(Locale.ROOT).contains("ver");
     }
 
+    /**
+     * Checks a mod version against a dependency version; see
+     * {@link VersionRange#contains(Version)}.
+     */
+    public static boolean isMatchingVersion(String spec, String version) {
+        return VersionRange.of(spec).contains(version != null ? Version.of(version) : null);
+    }
+
     private static void appendModMetadata(Map<String, Map<String, ModMetadata>> metaMap, ModMetadata metadata, File file, boolean asFilenames) {
         if (metadata != null) {
             String key = asFilenames ? file.getName() : metadata.modid;
@@ -47,20 +57,19 @@ public final class ModAnalyzerUtils {
     }
 
     public static Map<String, Map<String, ModMetadata>> analyzeMods(File file, boolean recursive, boolean heuristics, boolean asFilenames) {
+        return analyzeMods(file, recursive, heuristics, asFilenames, 1);
+    }
+
+    public static Map<String, Map<String, ModMetadata>> analyzeMods(File file, boolean recursive, boolean heuristics, boolean asFilenames, int threads) {
         Map<String, Map<String, ModMetadata>> metaMap = new HashMap<>();
+        ModScanner scanner = new ModScanner(f -> new ModAnalyzer(f).setVersionHeuristics(heuristics).analyze())
+                .setRecursive(recursive)
+                .setThreads(threads);
 
-        if (!file.isDirectory()) {
-            appendModMetadata(metaMap, new ModAnalyzer(file).setVersionHeuristics(heuristics).analyze(), file, asFilenames);
-        } else {
-            for (File f : file.listFiles()) {
-                if (f.isDirectory()) {
-                    if (recursive) {
-                        metaMap.putAll(analyzeMods(f, recursive, heuristics, asFilenames));
-                    }
-                } else {
-                    appendModMetadata(metaMap, new ModAnalyzer(f).setVersionHeuristics(heuristics).analyze(), f, asFilenames);
-                }
-            }
+        List<File> files = scanner.collectFiles(Collections.singletonList(file));
+        List<ModMetadata> results = scanner.scan(files);
+        for (int i = 0; i < files.size(); i++) {
+            appendModMetadata(metaMap, results.get(i), files.get(i), asFilenames);
         }
 
         return metaMap;
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze;
+
+import pl.asie.modalyze.mcp.MCPUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * File-backed index of analyzed mods, written by {@link ModIndexWriter},
+ * with lookups by mod ID, provided mod ID, dependency name, SHA256 and
+ * filename.
+ *
+ * The file is memory-mapped; a lookup is a binary search in the table of
+ * the field, followed by decoding just the records found.
+ */
+public class ModIndex {
+    public static final String MODID = "modid";
+    public static final String PROVIDES = "provides";
+    public static final String DEPENDENCY = "dependency";
+    public static final String SHA256 = "sha256";
+    public static final String FILENAME = "filename";
+    public static final List<String> FIELDS = Collections.unmodifiableList(Arrays.asList(MODID, PROVIDES, DEPENDENCY, SHA256, FILENAME));
+
+    private static class Table {
+        final int offset, size;
+
+        Table(int offset, int size) {
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+
+    private final ByteBuffer buffer;
+    private final int count;
+    private final Map<String, Table> tables = new HashMap<>();
+    private final int recordOffsetsOffset, recordDataOffset;
+
+    public ModIndex(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() < 16 || channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Not a mod index: " + file);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (buffer.getInt(0) != ModIndexWriter.MAGIC) {
+            throw new IOException("Not a mod index: " + file);
+        } else if (buffer.getInt(4) != ModIndexWriter.FORMAT_VERSION) {
+            throw new IOException("Unsupported mod index version " + buffer.getInt(4) + ": " + file);
+        }
+
+        count = buffer.getInt(8);
+        int tableCount = buffer.getInt(12);
+        int pos = 16;
+        for (int i = 0; i < tableCount; i++) {
+            int nameLength = buffer.getShort(pos) & 0xFFFF;
+            String name = new String(getBytes(pos + 2, nameLength), StandardCharsets.UTF_8);
+            pos += 2 + nameLength;
+            tables.put(name, new Table((int) buffer.getLong(pos), buffer.getInt(pos + 8)));
+            pos += 12;
+        }
+        recordOffsetsOffset = (int) buffer.getLong(pos);
+        recordDataOffset = (int) buffer.getLong(pos + 8);
+    }
+
+    static String normalize(String field, String key) {
+        return SHA256.equals(field) ? key.toLowerCase(Locale.ROOT) : key;
+    }
+
+    private byte[] getBytes(int offset, int length) {
+        byte[] data = new byte[length];
+        ByteBuffer b = buffer.duplicate();
+        b.position(offset);
+        b.get(data);
+        return data;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public ModMetadata get(int record) {
+        if (record < 0 || record >= count) {
+            throw new IndexOutOfBoundsException("Record " + record + " of " + count);
+        }
+
+        int start = (int) buffer.getLong(recordOffsetsOffset + record * 8);
+        int end = (int) buffer.getLong(recordOffsetsOffset + record * 8 + 8);
+        String json = new String(getBytes(recordDataOffset + start, end - start), StandardCharsets.UTF_8);
+        return ModIndexWriter.GSON.fromJson(json, ModMetadata.class);
+    }
+
+    private static Collection<String> getKeys(String field, ModMetadata m) {
+        switch (field) {
+            case MODID:
+                return Collections.singleton(m.modid);
+            case PROVIDES:
+                return m.provides != null ? m.provides : Collections.emptyList();
+            case DEPENDENCY:
+                return m.dependencies != null ? m.dependencies.keySet() : Collections.emptySet();
+            case SHA256:
+                return Collections.singleton(m.sha256 != null ? normalize(SHA256, m.sha256) : null);
+            case FILENAME:
+                return Collections.singleton(m.filename);
+            default:
+                return Collections.emptyList();
+        }
+    }
+
+    /**
+     * @param field One of {@link #FIELDS}.
+     * @return The records whose field contains the given key, in the order
+     * they were added in.
+     */
+    public List<ModMetadata> find(String field, String key) {
+        Table table = tables.get(field);
+        if (table == null) {
+            throw new IllegalArgumentException("Unknown field: " + field);
+        }
+
+        key = normalize(field, key);
+        long hash = MCPUtils.hashKey(key);
+        // find the first entry with the hash
+        int low = 0, high = table.size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (buffer.getLong(table.offset + mid * 8) < hash) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        List<ModMetadata> results = new ArrayList<>();
+        int recordsOffset = table.offset + table.size * 8;
+        for (int i = low; i < table.size && buffer.getLong(table.offset + i * 8) == hash; i++) {
+            ModMetadata m = get(buffer.getInt(recordsOffset + i * 4));
+            if (getKeys(field, m).contains(key)) {
+                results.add(m);
+            }
+        }
+        return results;
+    }
+
+    public List<ModMetadata> findByModid(String modid) {
+        return find(MODID, modid);
+    }
+
+    public List<ModMetadata> findByProvides(String modid) {
+        return find(PROVIDES, modid);
+    }
+
+    public List<ModMetadata> findByDependency(String modid) {
+        return find(DEPENDENCY, modid);
+    }
+
+    public List<ModMetadata> findBySha256(String sha256) {
+        return find(SHA256, sha256);
+    }
+
+    public List<ModMetadata> findByFilename(String filename) {
+        return find(FILENAME, filename);
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import pl.asie.modalyze.mcp.MCPUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Writes the file-backed index read by {@link ModIndex}: every record,
+ * plus one lookup table per indexed field.
+ *
+ * Layout (big-endian):
+ *
+ *   int magic, int format version, int record count, int table count,
+ *   per table: UTF field name, long offset, int entry count,
+ *   long record offsets offset, long record data offset,
+ *   per table: long[entries] sorted key hashes, int[entries] records,
+ *   long[record count + 1] offsets into the record data,
+ *   record data: one UTF-8 JSON object per record
+ *
+ * Keys are hashed with {@link MCPUtils#hashKey(CharSequence)}; records
+ * found through a hash are checked against the key itself when read.
+ */
+public class ModIndexWriter {
+    static final int MAGIC = 0x4D494458; // MIDX
+    static final int FORMAT_VERSION = 1;
+    static final Gson GSON = new GsonBuilder()
+            .registerTypeAdapter(ModMetadata.class, new ModMetadataTypeAdapter())
+            .create();
+
+    private static class Table {
+        private long[] hashes = new long[64];
+        private int[] records = new int[64];
+        private int size;
+
+        void add(String key, int record) {
+            if (size == hashes.length) {
+                hashes = Arrays.copyOf(hashes, size * 2);
+                records = Arrays.copyOf(records, size * 2);
+            }
+            hashes[size] = MCPUtils.hashKey(key);
+            records[size++] = record;
+        }
+    }
+
+    private final Map<String, Table> tables = new LinkedHashMap<>();
+    private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+    private long[] recordOffsets = new long[64];
+    private int count;
+
+    public ModIndexWriter() {
+        for (String field : ModIndex.FIELDS) {
+            tables.put(field, new Table());
+        }
+    }
+
+    private void addKeys(String field, Collection<String> keys) {
+        if (keys != null) {
+            for (String key : new HashSet<>(keys)) {
+                if (key != null) {
+                    tables.get(field).add(ModIndex.normalize(field, key), count);
+                }
+            }
+        }
+    }
+
+    public synchronized ModIndexWriter add(ModMetadata m) {
+        addKeys(ModIndex.MODID, Collections.singleton(m.modid));
+        addKeys(ModIndex.PROVIDES, m.provides);
+        addKeys(ModIndex.DEPENDENCY, m.dependencies != null ? m.dependencies.keySet() : null);
+        addKeys(ModIndex.SHA256, Collections.singleton(m.sha256));
+        addKeys(ModIndex.FILENAME, Collections.singleton(m.filename));
+
+        byte[] json = GSON.toJson(m).getBytes(StandardCharsets.UTF_8);
+        data.write(json, 0, json.length);
+        if (count + 1 == recordOffsets.length) {
+            recordOffsets = Arrays.copyOf(recordOffsets, recordOffsets.length * 2);
+        }
+        recordOffsets[++count] = data.size();
+        return this;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Sorts a table by hash, then by record, in place.
+     */
+    private static void sort(Table table) {
+        Integer[] order = new Integer[table.size];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> table.hashes[a] != table.hashes[b]
+                ? Long.compare(table.hashes[a], table.hashes[b])
+                : Integer.compare(table.records[a], table.records[b]));
+
+        long[] hashes = new long[table.size];
+        int[] records = new int[table.size];
+        for (int i = 0; i < order.length; i++) {
+            hashes[i] = table.hashes[order[i]];
+            records[i] = table.records[order[i]];
+        }
+        table.hashes = hashes;
+        table.records = records;
+    }
+
+    public synchronized void write(File file) throws IOException {
+        long offset = 16;
+        for (String field : tables.keySet()) {
+            offset += 2 + field.length() + 12;
+        }
+        offset += 16;
+        for (Table table : tables.values()) {
+            sort(table);
+        }
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        File tmpFile = File.createTempFile(file.getName(), ".tmp", parent);
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile.toPath())))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(count);
+                out.writeInt(tables.size());
+                for (Map.Entry<String, Table> entry : tables.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(offset);
+                    out.writeInt(entry.getValue().size);
+                    offset += entry.getValue().size * 12L;
+                }
+                out.writeLong(offset);
+                out.writeLong(offset + (count + 1) * 8L);
+
+                for (Table table : tables.values()) {
+                    for (int i = 0; i < table.size; i++) {
+                        out.writeLong(table.hashes[i]);
+                    }
+                    for (int i = 0; i < table.size; i++) {
+                        out.writeInt(table.records[i]);
+                    }
+                }
+                for (int i = 0; i <= count; i++) {
+                    out.writeLong(recordOffsets[i]);
+                }
+                data.writeTo(out);
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpFile.toPath());
+        }
+    }
+}
@@ -19,9 +19,15 @@ package pl.asie.modalyze;
 import lombok.Getter;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
 
 public class ModMetadata {
     public String modid;
@@ -29,14 +35,115 @@ public class ModMetadata {
     public String name, description, version, homepage;
     public String side;
     public String filename, sha256;
+    public Map<String, String> hashes;
     public List<String> authors;
     public Map<String, String> dependencies;
     public boolean hasCoremod;
+    public Integer tier;
+
+    /**
+     * A serialized field of ModMetadata, with its accessors and how to copy
+     * its value.
+     */
+    static final class Field<T> {
+        enum Type {
+            STRING, STRING_LIST, STRING_MAP, BOOLEAN, INT
+        }
+
+        final String name;
+        final Type type;
+        private final Function<ModMetadata, T> getter;
+        private final BiConsumer<ModMetadata, T> setter;
+        private final UnaryOperator<T> copier;
+
+        private Field(String name, Type type, Function<ModMetadata, T> getter, BiConsumer<ModMetadata, T> setter, UnaryOperator<T> copier) {
+            this.name = name;
+            this.type = type;
+            this.getter = getter;
+            this.setter = setter;
+            this.copier = copier;
+        }
+
+        private static Field<String> ofString(String name, Function<ModMetadata, String> getter, BiConsumer<ModMetadata, String> setter) {
+            return new Field<>(name, Type.STRING, getter, setter, UnaryOperator.identity());
+        }
+
+        private static Field<List<String>> ofStringList(String name, Function<ModMetadata, List<String>> getter, BiConsumer<ModMetadata, List<String>> setter) {
+            return new Field<>(name, Type.STRING_LIST, getter, setter, ArrayList::new);
+        }
+
+        private static Field<Map<String, String>> ofStringMap(String name, Function<ModMetadata, Map<String, String>> getter, BiConsumer<ModMetadata, Map<String, String>> setter) {
+            return new Field<>(name, Type.STRING_MAP, getter, setter, LinkedHashMap::new);
+        }
+
+        T get(ModMetadata m) {
+            return getter.apply(m);
+        }
+
+        /**
+         * @param value A value of this field's type, as returned by get().
+         */
+        @SuppressWarnings("unchecked")
+        void set(ModMetadata m, Object value) {
+            setter.accept(m, (T) value);
+        }
+
+        void copy(ModMetadata from, ModMetadata to) {
+            T value = getter.apply(from);
+            setter.accept(to, value != null ? copier.apply(value) : null);
+        }
+    }
+
+    /**
+     * The serialized fields, in declaration order. The JSON adapter, the
+     * columnar format and copy() all go through this list.
+     */
+    static final List<Field<?>> FIELDS = Collections.unmodifiableList(Arrays.asList(
+            Field.ofString("modid", m -> m.modid, (m, v) -> m.modid = v),
+            Field.ofStringList("provides", m -> m.provides, (m, v) -> m.provides = v),
+            Field.ofString("name", m -> m.name, (m, v) -> m.name = v),
+            Field.ofString("description", m -> m.description, (m, v) -> m.description = v),
+            Field.ofString("version", m -> m.version, (m, v) -> m.version = v),
+            Field.ofString("homepage", m -> m.homepage, (m, v) -> m.homepage = v),
+            Field.ofString("side", m -> m.side, (m, v) -> m.side = v),
+            Field.ofString("filename", m -> m.filename, (m, v) -> m.filename = v),
+            Field.ofString("sha256", m -> m.sha256, (m, v) -> m.sha256 = v),
+            Field.ofStringMap("hashes", m -> m.hashes, (m, v) -> m.hashes = v),
+            Field.ofStringList("authors", m -> m.authors, (m, v) -> m.authors = v),
+            Field.ofStringMap("dependencies", m -> m.dependencies, (m, v) -> m.dependencies = v),
+            new Field<Boolean>("hasCoremod", Field.Type.BOOLEAN, m -> m.hasCoremod, (m, v) -> m.hasCoremod = v, UnaryOperator.identity()),
+            new Field<Integer>("tier", Field.Type.INT, m -> m.tier, (m, v) -> m.tier = v, UnaryOperator.identity())
+    ));
+
+    private static final Map<String, Field<?>> FIELDS_BY_NAME = new HashMap<>();
+
+    static {
+        for (Field<?> field : FIELDS) {
+            FIELDS_BY_NAME.put(field.name, field);
+        }
+    }
+
+    /**
+     * @return The serialized field with the given name, or null.
+     */
+    static Field<?> getField(String name) {
+        return FIELDS_BY_NAME.get(name);
+    }
 
     @Getter
     private transient List<String> versionCandidates = new ArrayList<>();
     public transient boolean valid;
 
+    public ModMetadata copy() {
+        ModMetadata m = new ModMetadata();
+        for (Field<?> field : FIELDS) {
+            field.copy(this, m);
+        }
+        m.versionCandidates.addAll(versionCandidates);
+        m.valid = valid;
+        return m;
+    }
+
     public void addVersionCandidate(String candidate) {
         versionCandidates.add(candidate);
     }
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Groups analysis results by filename and by mod ID as they come in, from
+ * any number of threads.
+ *
+ * Every result is added with the index of its input file, and groups keep
+ * their members in index order, so the groupings come out the same no
+ * matter in which order the results arrived. Mods without an ID are
+ * numbered UNKNOWN-0, UNKNOWN-1, ... in that order.
+ */
+public class ModMetadataAggregator {
+    private static final Comparator<ModMetadata> VERSION_ORDER =
+            Comparator.comparing(m -> m.version != null ? Version.of(m.version) : null, Comparator.nullsFirst(Comparator.naturalOrder()));
+
+    private final ConcurrentMap<String, ConcurrentNavigableMap<Integer, ModMetadata>> byFilename = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ConcurrentNavigableMap<Integer, ModMetadata>> byId = new ConcurrentHashMap<>();
+    private final ConcurrentNavigableMap<Integer, ModMetadata> unknownIds = new ConcurrentSkipListMap<>();
+    private final ConcurrentNavigableMap<Integer, ModMetadata> all = new ConcurrentSkipListMap<>();
+    private boolean keepUnknown;
+
+    public ModMetadataAggregator setKeepUnknown(boolean ku) {
+        keepUnknown = ku;
+        return this;
+    }
+
+    private static void add(ConcurrentMap<String, ConcurrentNavigableMap<Integer, ModMetadata>> groups, String key, int index, ModMetadata metadata) {
+        groups.computeIfAbsent(key, k -> new ConcurrentSkipListMap<>()).put(index, metadata);
+    }
+
+    public void add(int index, ModMetadata metadata) {
+        if (metadata == null) {
+            return;
+        }
+
+        all.put(index, metadata);
+        // HashMap-style null key, serialized as "null"
+        add(byFilename, String.valueOf(metadata.filename), index, metadata);
+        if (metadata.modid != null) {
+            add(byId, metadata.modid, index, metadata);
+        } else if (keepUnknown) {
+            unknownIds.put(index, metadata);
+        }
+    }
+
+    public int size() {
+        return all.size();
+    }
+
+    /**
+     * @return An index above every index added so far, so that further
+     * results can be appended after them.
+     */
+    public int getNextIndex() {
+        return all.isEmpty() ? 0 : all.lastKey() + 1;
+    }
+
+    /**
+     * @return Every result, in index order.
+     */
+    public Collection<ModMetadata> getAll() {
+        return Collections.unmodifiableCollection(all.values());
+    }
+
+    /**
+     * @return The result with the lowest index, or null if there are none.
+     */
+    public ModMetadata getFirst() {
+        Map.Entry<Integer, ModMetadata> entry = all.firstEntry();
+        return entry != null ? entry.getValue() : null;
+    }
+
+    private static String nextUnknownKey(Map<String, ?> taken, int[] counter) {
+        String key;
+        do {
+            key = "UNKNOWN-" + counter[0]++;
+        } while (taken.containsKey(key));
+        return key;
+    }
+
+    /**
+     * @return The ID groups (with one group per mod without an ID), ordered
+     * by their first member.
+     */
+    private List<Map.Entry<String, Collection<ModMetadata>>> getIdGroups() {
+        List<Map.Entry<Integer, Map.Entry<String, Collection<ModMetadata>>>> groups = new ArrayList<>(byId.size() + unknownIds.size());
+        for (Map.Entry<String, ConcurrentNavigableMap<Integer, ModMetadata>> entry : byId.entrySet()) {
+            groups.add(new AbstractMap.SimpleEntry<>(entry.getValue().firstKey(),
+                    new AbstractMap.SimpleEntry<>(entry.getKey(), entry.getValue().values())));
+        }
+        int[] counter = new int[1];
+        for (Map.Entry<Integer, ModMetadata> entry : unknownIds.entrySet()) {
+            groups.add(new AbstractMap.SimpleEntry<>(entry.getKey(),
+                    new AbstractMap.SimpleEntry<>(nextUnknownKey(byId, counter), Collections.singletonList(entry.getValue()))));
+        }
+        groups.sort(Map.Entry.comparingByKey());
+
+        List<Map.Entry<String, Collection<ModMetadata>>> result = new ArrayList<>(groups.size());
+        for (Map.Entry<Integer, Map.Entry<String, Collection<ModMetadata>>> entry : groups) {
+            result.add(entry.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * @return Every result by filename; of results with the same filename,
+     * the last one is kept.
+     */
+    public Map<String, ModMetadata> getByFilename() {
+        List<Map.Entry<String, ConcurrentNavigableMap<Integer, ModMetadata>>> groups = new ArrayList<>(byFilename.entrySet());
+        groups.sort(Comparator.comparing(e -> e.getValue().firstKey()));
+
+        Map<String, ModMetadata> map = new HashMap<>();
+        for (Map.Entry<String, ConcurrentNavigableMap<Integer, ModMetadata>> entry : groups) {
+            map.put(entry.getKey(), entry.getValue().lastEntry().getValue());
+        }
+        return map;
+    }
+
+    /**
+     * @return The results by mod ID, each list sorted by version.
+     */
+    public Map<String, List<ModMetadata>> getById() {
+        Map<String, List<ModMetadata>> map = new HashMap<>();
+        for (Map.Entry<String, Collection<ModMetadata>> entry : getIdGroups()) {
+            List<ModMetadata> list = new ArrayList<>(entry.getValue());
+            list.sort(VERSION_ORDER);
+            map.put(entry.getKey(), list);
+        }
+        return map;
+    }
+
+    /**
+     * @return The results by mod ID and version; of results with the same
+     * ID and version, the last one is kept.
+     */
+    public Map<String, Map<String, ModMetadata>> getByIdAndVersion() {
+        Map<String, Map<String, ModMetadata>> map = new HashMap<>();
+        for (Map.Entry<String, Collection<ModMetadata>> entry : getIdGroups()) {
+            Map<String, ModMetadata> versions = new HashMap<>();
+            int[] counter = new int[1];
+            for (ModMetadata m : entry.getValue()) {
+                if (m.version != null) {
+                    versions.put(m.version, m);
+                } else if (keepUnknown) {
+                    versions.put(nextUnknownKey(versions, counter), m);
+                }
+            }
+            map.put(entry.getKey(), versions);
+        }
+        return map;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Gson serializer for ModMetadata that goes through its field list instead
+ * of reflection. The output is the same as Gson's reflective one: fields in
+ * declaration order, null fields left out.
+ */
+public class ModMetadataTypeAdapter extends TypeAdapter<ModMetadata> {
+    @Override
+    public void write(JsonWriter out, ModMetadata m) throws IOException {
+        if (m == null) {
+            out.nullValue();
+            return;
+        }
+
+        out.beginObject();
+        for (ModMetadata.Field<?> field : ModMetadata.FIELDS) {
+            Object value = field.get(m);
+            if (value == null) {
+                continue;
+            }
+
+            out.name(field.name);
+            switch (field.type) {
+                case STRING:
+                    out.value((String) value);
+                    break;
+                case STRING_LIST:
+                    writeList(out, (List<?>) value);
+                    break;
+                case STRING_MAP:
+                    writeMap(out, (Map<?, ?>) value);
+                    break;
+                case BOOLEAN:
+                    out.value((Boolean) value);
+                    break;
+                case INT:
+                    out.value((Integer) value);
+                    break;
+            }
+        }
+        out.endObject();
+    }
+
+    private void writeList(JsonWriter out, List<?> list) throws IOException {
+        out.beginArray();
+        for (Object s : list) {
+            out.value((String) s);
+        }
+        out.endArray();
+    }
+
+    private void writeMap(JsonWriter out, Map<?, ?> map) throws IOException {
+        out.beginObject();
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            out.name((String) entry.getKey()).value((String) entry.getValue());
+        }
+        out.endObject();
+    }
+
+    @Override
+    public ModMetadata read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        ModMetadata m = new ModMetadata();
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                continue;
+            }
+
+            ModMetadata.Field<?> field = ModMetadata.getField(name);
+            if (field == null) {
+                in.skipValue();
+                continue;
+            }
+
+            switch (field.type) {
+                case STRING:
+                    field.set(m, in.nextString());
+                    break;
+                case STRING_LIST:
+                    field.set(m, readList(in));
+                    break;
+                case STRING_MAP:
+                    field.set(m, readMap(in, new LinkedHashMap<>()));
+                    break;
+                case BOOLEAN:
+                    field.set(m, in.nextBoolean());
+                    break;
+                case INT:
+                    field.set(m, in.nextInt());
+                    break;
+            }
+        }
+        in.endObject();
+        return m;
+    }
+
+    private List<String> readList(JsonReader in) throws IOException {
+        List<String> list = new ArrayList<>();
+        in.beginArray();
+        while (in.hasNext()) {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                list.add(null);
+            } else {
+                list.add(in.nextString());
+            }
+        }
+        in.endArray();
+        return list;
+    }
+
+    private Map<String, String> readMap(JsonReader in, Map<String, String> map) throws IOException {
+        in.beginObject();
+        while (in.hasNext()) {
+            String key = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+            } else {
+                map.put(key, in.nextString());
+            }
+        }
+        in.endObject();
+        return map;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+public class ModScanner {
+    public interface ResultConsumer {
+        /**
+         * @param index The index of the analyzed file in the input list.
+         */
+        void accept(int index, ModMetadata metadata);
+    }
+
+    private final Function<File, ModMetadata> analyzer;
+    private int threads = 1;
+    private boolean recursive = true;
+
+    public ModScanner(Function<File, ModMetadata> analyzer) {
+        this.analyzer = analyzer;
+    }
+
+    public ModScanner setThreads(int t) {
+        threads = Math.max(1, t);
+        return this;
+    }
+
+    public ModScanner setRecursive(boolean r) {
+        recursive = r;
+        return this;
+    }
+
+    public List<File> collectFiles(Collection<File> roots) {
+        List<File> files = new ArrayList<>();
+        for (File f : roots) {
+            collectFiles(files, f, true);
+        }
+        return files;
+    }
+
+    private void collectFiles(List<File> files, File file, boolean root) {
+        if (!file.isDirectory()) {
+            files.add(file);
+        } else if (root || recursive) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File f : children) {
+                    collectFiles(files, f, false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Analyzes the given files, returning the results in the same order
+     * as the input list (with null entries for failed analyses), so that
+     * serial and parallel runs produce the same output.
+     */
+    public List<ModMetadata> scan(List<File> files) {
+        ModMetadata[] results = new ModMetadata[files.size()];
+        scan(files, (i, m) -> results[i] = m);
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Analyzes the given files, handing every result to the consumer as soon
+     * as it is ready, without keeping it. With more than one thread, results
+     * come in completion order, and the consumer is called from several
+     * threads at once. Failed analyses are skipped.
+     */
+    public void scan(List<File> files, Consumer<ModMetadata> consumer) {
+        scan(files, (i, m) -> {
+            if (m != null) {
+                consumer.accept(m);
+            }
+        });
+    }
+
+    /**
+     * Analyzes the given files, handing every result (including nulls for
+     * failed analyses) to the consumer as soon as it is ready, together with
+     * the index of its file. With more than one thread, the consumer is
+     * called from several threads at once.
+     */
+    public void scan(List<File> files, ResultConsumer consumer) {
+        if (threads <= 1 || files.size() <= 1) {
+            for (int i = 0; i < files.size(); i++) {
+                consumer.accept(i, analyzer.apply(files.get(i)));
+            }
+        } else {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                pool.invoke(new ScanTask(files, consumer, 0, files.size()));
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    private class ScanTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<File> files;
+        private final ResultConsumer consumer;
+        private final int from, to;
+
+        ScanTask(List<File> files, ResultConsumer consumer, int from, int to) {
+            this.files = files;
+            this.consumer = consumer;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 1) {
+                for (int i = from; i < to; i++) {
+                    consumer.accept(i, analyzer.apply(files.get(i)));
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new ScanTask(files, consumer, from, mid), new ScanTask(files, consumer, mid, to));
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.zip.ZipEntry;
+
+/**
+ * Analyzes the .jar/.zip archives nested inside a single archive.
+ *
+ * Nesting is limited in depth, and all archives nested (at any depth)
+ * inside one top-level file share a budget of uncompressed bytes. Sibling
+ * archives can optionally be analyzed in parallel on the fork-join pool
+ * of the ModScanner running the analysis, so that its thread count bounds
+ * them too; anywhere else they are analyzed in turn. Archives coming from
+ * a stream are buffered for that, which the byte budget also bounds.
+ */
+class NestedArchiveAnalyzer {
+    interface StreamSource {
+        InputStream open() throws IOException;
+    }
+
+    private final ModAnalyzer owner;
+    private final AtomicLong bytesRemaining;
+    private final List<Supplier<ModMetadata>> results = new ArrayList<>();
+
+    NestedArchiveAnalyzer(ModAnalyzer owner, AtomicLong bytesRemaining) {
+        this.owner = owner;
+        this.bytesRemaining = bytesRemaining;
+    }
+
+    static boolean isNestedArchive(String name) {
+        return name.endsWith(".zip") || name.endsWith(".jar");
+    }
+
+    private void skip(ZipEntry entry, String reason) {
+        if (owner.isVerbose()) {
+            System.err.println("[*] Skipping nested archive " + owner.getName() + "!/" + entry.getName() + ": " + reason);
+        }
+    }
+
+    private boolean isParallel() {
+        ForkJoinPool pool = ForkJoinTask.getPool();
+        return owner.isParallelNested() && pool != null && pool != ForkJoinPool.commonPool();
+    }
+
+    private boolean checkDepth(ZipEntry entry) {
+        if (owner.getDepth() >= owner.getMaxNestingDepth()) {
+            skip(entry, "nesting depth limit reached");
+            return false;
+        }
+        return true;
+    }
+
+    private boolean reserve(ZipEntry entry, long size) {
+        if (bytesRemaining.addAndGet(-size) < 0) {
+            bytesRemaining.addAndGet(size);
+            skip(entry, "byte budget exceeded");
+            return false;
+        }
+        return true;
+    }
+
+    private byte[] read(ZipEntry entry, InputStream stream) throws IOException {
+        long size = entry.getSize();
+        if (size >= 0) {
+            if (size > Integer.MAX_VALUE - 8 || !reserve(entry, size)) {
+                return null;
+            }
+            return IOUtils.toByteArray(stream, size);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = stream.read(buffer)) >= 0) {
+            if (!reserve(entry, count)) {
+                bytesRemaining.addAndGet(out.size());
+                return null;
+            }
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Analyzes a nested archive read from a stream owned by the caller.
+     */
+    void append(ZipEntry entry, InputStream stream) throws IOException {
+        if (!checkDepth(entry)) {
+            return;
+        }
+
+        if (entry.getSize() >= 0 && !isParallel()) {
+            if (reserve(entry, entry.getSize())) {
+                ModMetadata metadata = analyze(entry, stream);
+                results.add(() -> metadata);
+            }
+        } else {
+            // The entry has to be buffered: either its size is unknown, so
+            // it cannot be checked against the budget upfront, or it is going
+            // to be analyzed on another thread.
+            byte[] data = read(entry, stream);
+            if (data != null) {
+                submit(entry, () -> new ByteArrayInputStream(data));
+            }
+        }
+    }
+
+    /**
+     * Analyzes a nested archive which can be opened independently, such as
+     * an entry of a ZipFile.
+     */
+    void append(ZipEntry entry, StreamSource source) throws IOException {
+        if (checkDepth(entry) && reserve(entry, Math.max(entry.getSize(), 0))) {
+            submit(entry, source);
+        }
+    }
+
+    private void submit(ZipEntry entry, StreamSource source) throws IOException {
+        if (isParallel()) {
+            ForkJoinTask<ModMetadata> task = ForkJoinTask.adapt(() -> {
+                try (InputStream stream = source.open()) {
+                    return analyze(entry, stream);
+                }
+            }).fork();
+            results.add(task::join);
+        } else {
+            try (InputStream stream = source.open()) {
+                ModMetadata metadata = analyze(entry, stream);
+                results.add(() -> metadata);
+            }
+        }
+    }
+
+    private ModMetadata analyze(ZipEntry entry, InputStream stream) throws IOException {
+        ModAnalyzer analyzer = owner.createNestedAnalyzer(entry.getName(), bytesRemaining);
+        ContentDeduplicator deduplicator = owner.getDeduplicator();
+        String fingerprint = deduplicator != null ? ContentDeduplicator.fingerprint(entry) : null;
+
+        if (fingerprint == null) {
+            return analyzer.analyze(stream);
+        }
+
+        boolean[] analyzed = new boolean[1];
+        ModMetadata metadata;
+        try {
+            metadata = deduplicator.analyze(fingerprint, () -> {
+                analyzed[0] = true;
+                try {
+                    return analyzer.analyze(stream);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        if (metadata != null && !analyzed[0]) {
+            analyzer.rehash(metadata, stream);
+        }
+        return metadata;
+    }
+
+    /**
+     * @return The valid results of all nested archives, in the order they
+     * were appended, waiting for any still being analyzed.
+     */
+    List<ModMetadata> getResults() {
+        List<ModMetadata> list = new ArrayList<>(results.size());
+        for (Supplier<ModMetadata> result : results) {
+            try {
+                ModMetadata metadata = result.get();
+                if (metadata != null && metadata.valid) {
+                    list.add(metadata);
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        return list;
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze;
+
+import lombok.Getter;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A parsed mod or Minecraft version. Instances are interned, so every
+ * distinct string is parsed once no matter how often it is looked up.
+ *
+ * Versions are ordered component by component (split on ".", "-", "_"
+ * and "+"); numeric components compare as numbers, others as strings,
+ * and numbers sort before strings. Missing components count as 0, so
+ * "1.0" and "1" are equivalent. The qualifiers "alpha", "beta", "pre",
+ * "rc" and "snapshot" (in any case, optionally followed by a number)
+ * sort in that order and before numbers, so "1.0-beta2" < "1.0-rc1" <
+ * "1.0", as in Maven. A leading "a" or "b" marks a Minecraft alpha or
+ * beta, which sorts before any release.
+ */
+public final class Version implements Comparable<Version> {
+    private static final ConcurrentMap<String, Version> CACHE = new ConcurrentHashMap<>();
+    private static final Pattern SEPARATOR = Pattern.compile("[.\\-_+]");
+    private static final Pattern PRERELEASE = Pattern.compile("^[ab]\\d");
+    private static final Pattern LINE = Pattern.compile("^([ab])?(\\d+)(?:\\.(\\d+))?");
+    private static final Pattern RELEASE = Pattern.compile("(\\d+)\\.(\\d+)(?:\\.\\d+)*");
+    private static final Pattern QUALIFIER = Pattern.compile("(alpha|beta|pre|rc|snapshot)(\\d*)", Pattern.CASE_INSENSITIVE);
+    private static final String[] QUALIFIERS = new String[] { "alpha", "beta", "pre", "rc", "snapshot" };
+    private static final String[] ZERO = new String[] { "0" };
+
+    @Getter
+    private final String string;
+    /** The version without a "-client" or similar suffix. */
+    @Getter
+    private final String base;
+    /** The suffix after the first "-", or null. */
+    @Getter
+    private final String suffix;
+    /**
+     * The major and minor components as a number which sorts in release
+     * order; alpha and beta versions all share line 0. -1 if the version
+     * can't be parsed.
+     */
+    @Getter
+    private final int line;
+    private final int major, minor;
+    // 0 = alpha, 1 = beta, 2 = anything else
+    private final int channel;
+    private final String[] components;
+    private final boolean[] numeric;
+    // index into QUALIFIERS, or -1; the component holds the number after it
+    private final int[] qualifier;
+
+    private Version(String string) {
+        this.string = string;
+        int dash = string.indexOf('-');
+        this.base = dash >= 0 ? string.substring(0, dash) : string;
+        this.suffix = dash >= 0 ? string.substring(dash + 1) : null;
+
+        String trimmed = string.trim();
+        Matcher matcher = LINE.matcher(trimmed);
+        if (!matcher.find()) {
+            line = -1;
+        } else if (matcher.group(1) != null) {
+            line = 0;
+        } else {
+            int lineMajor = parseInt(matcher.group(2));
+            int lineMinor = matcher.group(3) != null ? parseInt(matcher.group(3)) : 0;
+            line = lineMajor >= 0 && lineMinor >= 0 ? lineMajor * 1000 + lineMinor : -1;
+        }
+
+        matcher = RELEASE.matcher(base);
+        if (matcher.matches()) {
+            major = parseInt(matcher.group(1));
+            minor = parseInt(matcher.group(2));
+        } else {
+            major = minor = -1;
+        }
+
+        if (PRERELEASE.matcher(trimmed).find()) {
+            channel = trimmed.charAt(0) == 'a' ? 0 : 1;
+            trimmed = trimmed.substring(1);
+        } else {
+            channel = 2;
+        }
+
+        components = trimmed.isEmpty() ? ZERO : SEPARATOR.split(trimmed, -1);
+        numeric = new boolean[components.length];
+        qualifier = new int[components.length];
+        for (int i = 0; i < components.length; i++) {
+            String c = components[i];
+            qualifier[i] = -1;
+            Matcher qualifierMatcher = QUALIFIER.matcher(c);
+            if (qualifierMatcher.matches()) {
+                qualifier[i] = getQualifier(qualifierMatcher.group(1));
+                c = qualifierMatcher.group(2).isEmpty() ? "0" : qualifierMatcher.group(2);
+            }
+            numeric[i] = !c.isEmpty() && c.chars().allMatch(ch -> ch >= '0' && ch <= '9');
+            if (numeric[i]) {
+                int start = 0;
+                while (start < c.length() - 1 && c.charAt(start) == '0') {
+                    start++;
+                }
+                components[i] = c.substring(start);
+            }
+        }
+    }
+
+    private static int getQualifier(String s) {
+        for (int i = 0; i < QUALIFIERS.length; i++) {
+            if (QUALIFIERS[i].equalsIgnoreCase(s)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int compareNumbers(String a, String b) {
+        return a.length() != b.length() ? Integer.compare(a.length(), b.length()) : a.compareTo(b);
+    }
+
+    private static int parseInt(String s) {
+        try {
+            return Integer.parseInt(s);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public static Version of(String string) {
+        Version version = CACHE.get(string);
+        if (version == null) {
+            version = new Version(string);
+            Version other = CACHE.putIfAbsent(string, version);
+            if (other != null) {
+                version = other;
+            }
+        }
+        return version;
+    }
+
+    /**
+     * @return Whether the version is a plain release, such as "1.7.10" or
+     * "1.12-client"; only then are the major and minor components set.
+     */
+    public boolean isRelease() {
+        return major >= 0 && minor >= 0;
+    }
+
+    public int getMajor() {
+        return major;
+    }
+
+    public int getMinor() {
+        return minor;
+    }
+
+    /**
+     * Compares the versions as described above; unlike compareTo, returns
+     * 0 for equivalent versions written differently.
+     */
+    public int compareVersion(Version other) {
+        if (this == other) {
+            return 0;
+        } else if (channel != other.channel) {
+            return channel < other.channel ? -1 : 1;
+        }
+
+        for (int i = 0; i < Math.max(components.length, other.components.length); i++) {
+            String ca = i < components.length ? components[i] : "0";
+            String cb = i < other.components.length ? other.components[i] : "0";
+            int qa = i < components.length ? qualifier[i] : -1;
+            int qb = i < other.components.length ? other.qualifier[i] : -1;
+            boolean na = i >= components.length || numeric[i];
+            boolean nb = i >= other.components.length || other.numeric[i];
+            int result;
+            if (qa >= 0 || qb >= 0) {
+                if (qa < 0 || qb < 0) {
+                    result = qa >= 0 ? -1 : 1;
+                } else {
+                    result = qa != qb ? Integer.compare(qa, qb) : compareNumbers(ca, cb);
+                }
+            } else if (na && nb) {
+                result = compareNumbers(ca, cb);
+            } else if (na != nb) {
+                result = na ? -1 : 1;
+            } else {
+                result = ca.compareTo(cb);
+            }
+            if (result != 0) {
+                return result;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Orders by compareVersion, then by string, so that distinct versions
+     * never compare as equal.
+     */
+    @Override
+    public int compareTo(Version other) {
+        int result = compareVersion(other);
+        return result != 0 ? result : string.compareTo(other.string);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return this == other || (other instanceof Version && string.equals(((Version) other).string));
+    }
+
+    @Override
+    public int hashCode() {
+        return string.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return string;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A dependency version, given as "*", a plain version or Maven-style
+ * ranges such as "[1.0,2.0)" or "(,1.5],[1.7,)". Instances are interned
+ * like Versions.
+ */
+public final class VersionRange {
+    private static final ConcurrentMap<String, VersionRange> CACHE = new ConcurrentHashMap<>();
+    private static final Pattern RANGE = Pattern.compile("[\\[(]([^,\\[\\]()]*)(?:,([^,\\[\\]()]*))?[\\])]");
+
+    private static class Bounds {
+        // null if unbounded
+        final Version lower, upper;
+        final boolean lowerInclusive, upperInclusive;
+
+        Bounds(Version lower, Version upper, boolean lowerInclusive, boolean upperInclusive) {
+            this.lower = lower;
+            this.upper = upper;
+            this.lowerInclusive = lowerInclusive;
+            this.upperInclusive = upperInclusive;
+        }
+    }
+
+    private final String spec;
+    private final boolean any;
+    // set if the spec is a plain version
+    private final Version version;
+    private final List<Bounds> bounds = new ArrayList<>();
+
+    private VersionRange(String spec) {
+        this.spec = spec;
+        String trimmed = spec.trim();
+        this.any = trimmed.isEmpty() || trimmed.equals("*");
+
+        if (!trimmed.startsWith("[") && !trimmed.startsWith("(")) {
+            this.version = any ? null : Version.of(trimmed);
+            return;
+        }
+
+        this.version = null;
+        Matcher matcher = RANGE.matcher(trimmed);
+        while (matcher.find()) {
+            String lower = matcher.group(1).trim();
+            String upper = matcher.group(2) != null ? matcher.group(2).trim() : lower;
+            bounds.add(new Bounds(lower.isEmpty() ? null : Version.of(lower), upper.isEmpty() ? null : Version.of(upper),
+                    trimmed.charAt(matcher.start()) == '[', trimmed.charAt(matcher.end() - 1) == ']'));
+        }
+    }
+
+    public static VersionRange of(String spec) {
+        VersionRange range = CACHE.get(spec);
+        if (range == null) {
+            range = new VersionRange(spec);
+            VersionRange other = CACHE.putIfAbsent(spec, range);
+            if (other != null) {
+                range = other;
+            }
+        }
+        return range;
+    }
+
+    /**
+     * @return Whether the version satisfies the range. As in Maven, a plain
+     * version is only a recommendation and matches any version; a missing
+     * version matches no range.
+     */
+    public boolean contains(Version v) {
+        if (version != null || any) {
+            return true;
+        } else if (v == null) {
+            return false;
+        }
+
+        for (Bounds b : bounds) {
+            if (b.lower != null) {
+                int c = v.compareVersion(b.lower);
+                if (c < 0 || (c == 0 && !b.lowerInclusive)) {
+                    continue;
+                }
+            }
+            if (b.upper != null) {
+                int c = v.compareVersion(b.upper);
+                if (c > 0 || (c == 0 && !b.upperInclusive)) {
+                    continue;
+                }
+            }
+            return true;
+        }
+        return bounds.isEmpty();
+    }
+
+    /**
+     * @return Whether the Minecraft version may satisfy the range. Versions
+     * are only compared down to the minor component (so "1.12.2" matches
+     * "1.12"), as mappings only exist for some releases of each line; this
+     * errs on the side of matching. Anything which can't be parsed matches.
+     */
+    public boolean containsMcLine(Version v) {
+        int line = v.getLine();
+        if (any || line < 0) {
+            return true;
+        } else if (version != null) {
+            return version.getLine() < 0 || version.getLine() == line;
+        }
+
+        for (Bounds b : bounds) {
+            int lowerLine = b.lower == null ? 0 : b.lower.getLine();
+            int upperLine = b.upper == null ? Integer.MAX_VALUE : b.upper.getLine();
+            if (lowerLine < 0 || upperLine < 0 || (line >= lowerLine && line <= upperLine)) {
+                return true;
+            }
+        }
+        return bounds.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze.mcp;
+
+/**
+ * Bloom filter over 64-bit key hashes, used to reject keys which are in
+ * no mapping before doing an exact lookup. Most keys collected from a mod
+ * are its own members, so this is the common case.
+ */
+class MCPBloomFilter {
+    private static final int HASH_COUNT = 6;
+    private static final int BITS_PER_KEY = 10;
+
+    private final long[] bits;
+    private final long bitMask;
+
+    private MCPBloomFilter(int words) {
+        this.bits = new long[words];
+        this.bitMask = words * 64L - 1;
+    }
+
+    /**
+     * @return The size of a filter for the given number of keys, in longs;
+     * always a power of two.
+     */
+    static int getWords(int keys) {
+        long bits = Math.max(64, (long) keys * BITS_PER_KEY);
+        return (int) (Long.highestOneBit(bits - 1) << 1 >> 6);
+    }
+
+    static MCPBloomFilter create(int keys) {
+        return new MCPBloomFilter(getWords(keys));
+    }
+
+    private int getBit(long hash, int i) {
+        // double hashing: the halves of the key hash give the probe sequence
+        return (int) (((hash >>> 32) + i * (hash | 1)) & bitMask);
+    }
+
+    void add(long hash) {
+        for (int i = 0; i < HASH_COUNT; i++) {
+            int bit = getBit(hash, i);
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    boolean mightContain(long hash) {
+        for (int i = 0; i < HASH_COUNT; i++) {
+            int bit = getBit(hash, i);
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
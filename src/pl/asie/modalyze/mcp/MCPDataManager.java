@@ -16,12 +16,17 @@
 
 package pl.asie.modalyze.mcp;
 
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
+import pl.asie.modalyze.Version;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -43,47 +48,94 @@ public class MCPDataManager {
     }
 
     private static final Map<String, MCPVersion> MCP_VERSION_MAP = new HashMap<>();
+    private static final Set<String> JAVA_8_VERSIONS = new HashSet<>(Arrays.asList(
+            "1.7.10", "1.8", "1.8.8", "1.9", "1.9.4", "1.10", "1.11.2", "1.12"
+    ));
     public static File MCP_DIR = new File("./mcp/");
-    private final Map<String, Set<String>> MAPPINGS = new HashMap<>();
+    private final Map<String, CompletableFuture<MCPMappings>> MAPPINGS = new ConcurrentHashMap<>();
+    private final AtomicReference<CompletableFuture<MCPKeyIndex>> keyIndex = new AtomicReference<>();
 
     public MCPDataManager() {
 
     }
 
     public boolean hasSides(String version) {
-        String v = version.split("-")[0];
+        String v = Version.of(version).getBase();
         return MCP_VERSION_MAP.containsKey(v) ? MCP_VERSION_MAP.get(v).hasSides : (v.startsWith("b") ? true : false);
     }
 
-    public Set<String> getVersionsForKeySet(Set<String> keys) {
-        Map<String, Integer> versions = new HashMap<>();
-        for (String s : MCP_VERSION_MAP.keySet()) {
-            versions.put(s + "-client", 0);
-            versions.put(s + "-server", 0);
+    public String getFingerprint() {
+        StringBuilder builder = new StringBuilder();
+        for (String version : new TreeSet<>(MCP_VERSION_MAP.keySet())) {
+            builder.append(version).append('=');
+            for (String s : MCP_VERSION_MAP.get(version).mcpFile) {
+                File mcpFile = new File(MCP_DIR, s);
+                if (mcpFile.exists()) {
+                    builder.append(s).append(':').append(mcpFile.length()).append(':').append(mcpFile.lastModified());
+                    break;
+                }
+            }
+            builder.append(';');
         }
+        return Integer.toHexString(builder.toString().hashCode());
+    }
 
-        /* for (String s : getMappings("1.5.2-client")) {
-            System.out.println(s);
-        }
-        System.out.println("---");
-        for (String s : keys) {
-            System.out.println(s);
-        } */
+    /**
+     * @return The index over every version, built once on first use. Mods
+     * are scored against their candidate versions by masking its targets,
+     * so one index serves every combination of candidates.
+     */
+    private MCPKeyIndex getKeyIndex() {
+        CompletableFuture<MCPKeyIndex> future = keyIndex.get();
+        if (future == null) {
+            CompletableFuture<MCPKeyIndex> newFuture = new CompletableFuture<>();
+            if (!keyIndex.compareAndSet(null, newFuture)) {
+                return keyIndex.get().join();
+            }
 
-        for (String s : keys) {
-            // HACK: No idea why that's needed.
-            String s15x = s.replaceAll("net/minecraft/([a-z/]+)/([A-Z])", "net/minecraft/src/$2");
-            for (String v : versions.keySet()) {
-                Set<String> mappings = getMappings(v);
-                if (v.startsWith("1.5") || v.startsWith("1.6")) {
-                    if (mappings.contains(s15x)) {
-                        versions.put(v, versions.get(v) + 1);
-                    }
-                } else {
-                    if (mappings.contains(s)) {
-                        versions.put(v, versions.get(v) + 1);
-                    }
+            try {
+                List<String> versions = new ArrayList<>(new TreeSet<>(MCP_VERSION_MAP.keySet()));
+                Map<String, MCPMappings> mappings = new HashMap<>();
+                for (String s : versions) {
+                    mappings.put(s, getMappings(s));
                 }
+                newFuture.complete(new MCPKeyIndex(versions, mappings));
+            } catch (RuntimeException e) {
+                keyIndex.compareAndSet(newFuture, null);
+                newFuture.completeExceptionally(e);
+                throw e;
+            }
+            future = newFuture;
+        }
+        return future.join();
+    }
+
+    public Set<String> getVersionsForKeySet(Set<String> keys) {
+        return getVersionsForKeySet(keys, MCP_VERSION_MAP.keySet());
+    }
+
+    /**
+     * Scores the keys against the given candidate versions only; the other
+     * versions' targets are left out of the comparison.
+     *
+     * @return The best matching "version-side" targets, or null if the keys
+     * do not tell the candidates apart.
+     */
+    public Set<String> getVersionsForKeySet(Set<String> keys, Collection<String> candidateVersions) {
+        List<String> candidates = new ArrayList<>(new TreeSet<>(candidateVersions));
+        candidates.retainAll(MCP_VERSION_MAP.keySet());
+        if (candidates.isEmpty()) {
+            return null;
+        }
+
+        MCPKeyIndex index = getKeyIndex();
+        String[] targets = index.getTargets();
+        boolean[] mask = index.getTargetMask(candidates);
+        int[] counts = index.count(keys);
+        Map<String, Integer> versions = new HashMap<>();
+        for (int i = 0; i < targets.length; i++) {
+            if (mask[i]) {
+                versions.put(targets[i], counts[i]);
             }
         }
 
@@ -104,124 +156,85 @@ public class MCPDataManager {
             }
         }
 
-        return versionSet.size() < MCP_VERSION_MAP.size() ? versionSet : null;
-    }
-
-    public Set<String> getMappings(String version, boolean server) {
-        return getMappings(version + (server ? "-server" : "-client"));
-    }
-
-    public Set<String> getMappings(String version) {
-        String target = version;
-        if (!MAPPINGS.containsKey(target)) {
-            try {
-                loadMappings(version.split("-")[0]);
-            } catch (IOException e) {
-                e.printStackTrace();
-                return null;
-            }
+        if (maxV == 0) {
+            return null;
         }
-
-        return MAPPINGS.get(target);
-    }
-
-    public Set<String> getVersions() {
-        return MCP_VERSION_MAP.keySet();
+        // targets are "version-side", so count the versions they belong to;
+        // with a single candidate, the keys can still tell the sides apart
+        Set<String> versionBases = new HashSet<>();
+        for (String s : versionSet) {
+            versionBases.add(Version.of(s).getBase());
+        }
+        return versionBases.size() < candidates.size() || candidates.size() == 1 ? versionSet : null;
     }
 
-    private void loadJoinedSrgMapping(String target, ZipFile file, ZipEntry entry) throws IOException {
-        List<String> lines = IOUtils.readLines(file.getInputStream(entry), "UTF-8");
-        Set<String> mapClient = new HashSet<>();
-        Set<String> mapServer = new HashSet<>();
-
-        if (lines != null) {
-            for (String s : lines) {
-                String[] sp = s.split(" ");
-                if (!s.endsWith("#S")) {
-                    if (s.startsWith("FD:") && sp.length >= 3) {
-                        mapClient.add(MCPUtils.getFieldKey(sp[1]));
-                        mapClient.add(MCPUtils.getFieldKey(sp[2]));
-                    } else if (s.startsWith("MD:") && sp.length >= 5) {
-                        mapClient.add(MCPUtils.getMethodKey(sp[1], sp[2]));
-                        mapClient.add(MCPUtils.getMethodKey(sp[3], sp[4]));
-                    }
-                }
-
-                if (!s.endsWith("#C")) {
-                    if (s.startsWith("FD:") && sp.length >= 3) {
-                        mapServer.add(MCPUtils.getFieldKey(sp[1]));
-                        mapServer.add(MCPUtils.getFieldKey(sp[2]));
-                    } else if (s.startsWith("MD:") && sp.length >= 5) {
-                        mapServer.add(MCPUtils.getMethodKey(sp[1], sp[2]));
-                        mapServer.add(MCPUtils.getMethodKey(sp[3], sp[4]));
-                    }
-                }
-            }
+    /**
+     * @return Whether a mod with classes of the given class file major
+     * version can run on the given Minecraft version. Java 8 classes need
+     * the ASM 5 shipped from 1.7.10 on. Newer class versions are not known
+     * to any supported version, so they don't narrow the candidates down;
+     * better to score every version than to prune the right one.
+     */
+    public boolean isMatchingClassVersion(String version, int classVersion) {
+        if (classVersion == 52) {
+            return JAVA_8_VERSIONS.contains(Version.of(version).getBase());
         } else {
-            System.err.println("Error loading SRG mapping for " + target);
+            return true;
         }
+    }
 
-        MAPPINGS.put(target + "-client", mapClient);
-        MAPPINGS.put(target + "-server", mapServer);
+    private MCPMappings loadMappingsOrNull(String version) {
+        try {
+            return loadMappings(version);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
     }
 
-    private void loadSrgMapping(String target, ZipFile file, ZipEntry entry) throws IOException {
-        List<String> lines = IOUtils.readLines(file.getInputStream(entry), "UTF-8");
-        Set<String> map = new HashSet<>();
-
-        if (lines != null) {
-            for (String s : lines) {
-                String[] sp = s.split(" ");
-                if (s.startsWith("FD:") && sp.length >= 3) {
-                    map.add(MCPUtils.getFieldKey(sp[1]));
-                    map.add(MCPUtils.getFieldKey(sp[2]));
-                } else if (s.startsWith("MD:") && sp.length >= 5) {
-                    map.add(MCPUtils.getMethodKey(sp[1], sp[2]));
-                    map.add(MCPUtils.getMethodKey(sp[3], sp[4]));
+    /**
+     * Safe to call from any number of threads; every version is loaded
+     * only once, with concurrent callers waiting for that load to finish.
+     */
+    public MCPMappings getMappings(String version) {
+        CompletableFuture<MCPMappings> future = MAPPINGS.get(version);
+        if (future == null) {
+            CompletableFuture<MCPMappings> newFuture = new CompletableFuture<>();
+            future = MAPPINGS.putIfAbsent(version, newFuture);
+            if (future == null) {
+                future = newFuture;
+                try {
+                    newFuture.complete(loadMappingsOrNull(version));
+                } catch (RuntimeException e) {
+                    MAPPINGS.remove(version, newFuture);
+                    newFuture.completeExceptionally(e);
+                    throw e;
                 }
             }
-        } else {
-            System.err.println("Error loading SRG mapping for " + target);
         }
-
-        MAPPINGS.put(target, map);
+        // waits if the version is still being loaded elsewhere
+        return future.join();
     }
 
-    private String[] splitCsv(String s) {
-        String[] sp = s.split(",");
-        for (int i = 0; i < sp.length; i++) {
-            sp[i] = sp[i].replace("\"", "");
+    /**
+     * Starts loading the given versions in the background; getMappings()
+     * then only waits for versions which have not finished loading yet.
+     */
+    public void preload(Collection<String> versions, int threads) {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, versions.size())), r -> {
+            Thread thread = new Thread(r, "MCP preloader");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        for (String version : versions) {
+            MAPPINGS.computeIfAbsent(version, v -> CompletableFuture.supplyAsync(() -> loadMappingsOrNull(v), executor));
         }
-        return sp;
+        executor.shutdown();
     }
 
-    private void loadCsvMapping(String target, ZipFile file, ZipEntry fields, ZipEntry methods) throws IOException {
-        List<String> fieldList = IOUtils.readLines(file.getInputStream(fields), "UTF-8");
-        List<String> methodList = IOUtils.readLines(file.getInputStream(methods), "UTF-8");
-        Set<String> mapClient = new HashSet<>();
-        Set<String> mapServer = new HashSet<>();
-
-        if (fieldList != null && methodList != null) {
-            for (int i = 1; i < fieldList.size(); i++) {
-                String[] sp = splitCsv(fieldList.get(i));
-                if (sp.length == 9) {
-                    Set<String> mapTarget = sp[8].equals("1") ? mapServer : mapClient;
-                    mapTarget.add(MCPUtils.getFieldKey(sp[6] + "/" + sp[2]));
-                }
-            }
-            for (int i = 1; i < methodList.size(); i++) {
-                String[] sp = splitCsv(methodList.get(i));
-                if (sp.length == 9) {
-                    Set<String> mapTarget = sp[8].equals("1") ? mapServer : mapClient;
-                    mapTarget.add(MCPUtils.getMethodKey(sp[6] + "/" + sp[2], sp[4]));
-                }
-            }
-        } else {
-            System.err.println("Error loading CSV mapping for " + target);
-        }
-
-        MAPPINGS.put(target + "-client", mapClient);
-        MAPPINGS.put(target + "-server", mapServer);
+    public Set<String> getVersions() {
+        return MCP_VERSION_MAP.keySet();
     }
 
     private ZipEntry getEntry(ZipFile zipFile, String name) {
@@ -233,60 +246,78 @@ public class MCPDataManager {
     }
 
 
-    private void loadMappings(String version) throws IOException {
-        File mappingClient = new File(MCP_DIR, version + "-client.map");
-        File mappingServer = new File(MCP_DIR, version + "-server.map");
-        if (mappingClient.exists() && mappingServer.exists()) {
-            MAPPINGS.put(version + "-client", new HashSet<>(FileUtils.readLines(mappingClient, "UTF-8")));
-            MAPPINGS.put(version + "-server", new HashSet<>(FileUtils.readLines(mappingServer, "UTF-8")));
-        } else {
-            File mcpFile = null;
-            MCPVersion mcpVersion = MCP_VERSION_MAP.get(version);
-            for (String s : mcpVersion.mcpFile) {
-                File mcpFileTry = new File(MCP_DIR, s);
-                if (mcpFileTry.exists()) {
-                    mcpFile = mcpFileTry;
-                    break;
-                }
+    private File getMcpFile(String version) {
+        for (String s : MCP_VERSION_MAP.get(version).mcpFile) {
+            File mcpFile = new File(MCP_DIR, s);
+            if (mcpFile.exists()) {
+                return mcpFile;
             }
+        }
+        return null;
+    }
 
-            if (mcpFile != null) {
-                ZipFile zipFile = new ZipFile(mcpFile);
-                ZipEntry joinedSrgEntry = getEntry(zipFile, "conf/joined.srg");
-                if (joinedSrgEntry != null) {
-                    loadJoinedSrgMapping(version, zipFile, joinedSrgEntry);
-                } else {
-                    ZipEntry clientSrgEntry = getEntry(zipFile, "conf/client.srg");
-                    ZipEntry serverSrgEntry = getEntry(zipFile, "conf/server.srg");
-                    if (clientSrgEntry != null && serverSrgEntry != null) {
-                        loadSrgMapping(version + "-client", zipFile, clientSrgEntry);
-                        loadSrgMapping(version + "-server", zipFile, serverSrgEntry);
-                    } else {
-                        ZipEntry csvFields = getEntry(zipFile, "conf/fields.csv");
-                        ZipEntry csvMethods = getEntry(zipFile, "conf/methods.csv");
-                        if (csvFields != null && csvMethods != null) {
-                            loadCsvMapping(version, zipFile, csvFields, csvMethods);
-                        } else {
-                            System.err.println("MCP file for Minecraft " + version + " (" + mcpFile.toString() + ") stored in an unknown format!");
-                            MAPPINGS.put(version + "-client", Collections.emptySet());
-                            MAPPINGS.put(version + "-server", Collections.emptySet());
-                        }
-                    }
-                }
+    private long getSourceFingerprint(File mcpFile) {
+        return MCPUtils.hashKey(mcpFile.getName() + ":" + mcpFile.length() + ":" + mcpFile.lastModified());
+    }
 
-                if (MAPPINGS.get(version + "-client") != null) {
-                    FileUtils.writeLines(mappingClient, MAPPINGS.get(version + "-client"));
-                }
+    private MCPMappings loadMappings(String version) throws IOException {
+        File snapshotFile = new File(MCP_DIR, version + "-mappings.bin");
+        File mcpFile = getMcpFile(version);
+        if (snapshotFile.exists()) {
+            MCPMappings snapshot = MCPMappings.read(snapshotFile);
+            // Without the MCP file, any snapshot is better than nothing.
+            if (snapshot != null && (mcpFile == null || snapshot.getSourceFingerprint() == getSourceFingerprint(mcpFile))) {
+                return snapshot;
+            }
+        }
+
+        if (mcpFile == null) {
+            System.err.println("MCP file for Minecraft " + version + " (" + String.join(", ", MCP_VERSION_MAP.get(version).mcpFile) + ") not found!");
+            return MCPMappings.EMPTY;
+        }
 
-                if (MAPPINGS.get(version + "-server") != null) {
-                    FileUtils.writeLines(mappingServer, MAPPINGS.get(version + "-server"));
+        MCPMappingParser parser = new MCPMappingParser();
+        try (ZipFile zipFile = new ZipFile(mcpFile)) {
+            ZipEntry joinedSrgEntry = getEntry(zipFile, "conf/joined.srg");
+            if (joinedSrgEntry != null) {
+                try (InputStream stream = zipFile.getInputStream(joinedSrgEntry)) {
+                    parser.parseJoinedSrg(stream);
                 }
             } else {
-                System.err.println("MCP file for Minecraft " + version + " (" + String.join(", ", mcpVersion.mcpFile) + ") not found!");
-                MAPPINGS.put(version + "-client", Collections.emptySet());
-                MAPPINGS.put(version + "-server", Collections.emptySet());
+                ZipEntry clientSrgEntry = getEntry(zipFile, "conf/client.srg");
+                ZipEntry serverSrgEntry = getEntry(zipFile, "conf/server.srg");
+                if (clientSrgEntry != null && serverSrgEntry != null) {
+                    try (InputStream stream = zipFile.getInputStream(clientSrgEntry)) {
+                        parser.parseSrg(stream, MCPMappings.CLIENT);
+                    }
+                    try (InputStream stream = zipFile.getInputStream(serverSrgEntry)) {
+                        parser.parseSrg(stream, MCPMappings.SERVER);
+                    }
+                } else {
+                    ZipEntry csvFields = getEntry(zipFile, "conf/fields.csv");
+                    ZipEntry csvMethods = getEntry(zipFile, "conf/methods.csv");
+                    if (csvFields != null && csvMethods != null) {
+                        try (InputStream stream = zipFile.getInputStream(csvFields)) {
+                            parser.parseCsv(stream, false);
+                        }
+                        try (InputStream stream = zipFile.getInputStream(csvMethods)) {
+                            parser.parseCsv(stream, true);
+                        }
+                    } else {
+                        System.err.println("MCP file for Minecraft " + version + " (" + mcpFile.toString() + ") stored in an unknown format!");
+                        return MCPMappings.EMPTY;
+                    }
+                }
             }
         }
+
+        MCPMappings mappings = MCPMappings.create(parser.getClientHashes(), parser.getServerHashes(), getSourceFingerprint(mcpFile));
+        try {
+            mappings.write(snapshotFile);
+        } catch (IOException e) {
+            System.err.println("[WARN] Could not save mapping snapshot " + snapshotFile + ": " + e.getMessage());
+        }
+        return mappings;
     }
 
     static {
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze.mcp;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Inverted index from mapping key hashes to the set of mapping targets
+ * ("version-side") containing them, so that a key set can be scored
+ * against every target with one lookup per key.
+ *
+ * The index is kept in primitive arrays: the sorted hashes of all keys,
+ * and for each of them a group - one distinct set of targets. There are
+ * only a few thousand groups, so keys are counted per group and only
+ * expanded to targets at the end.
+ *
+ * Most keys are present in every target; they add the same amount to
+ * every score and cannot tell versions apart. Scoring therefore goes
+ * through a much smaller table of discriminative keys, and a Bloom filter
+ * over it turns away the rest - mostly the mod's own
+ * members - before the binary search. Only keys which also need to be
+ * matched against 1.5/1.6 mappings in their legacy form use the full
+ * table, as only their combined hits are known to be uniform or not.
+ */
+class MCPKeyIndex {
+    // HACK: No idea why that's needed.
+    private static final Pattern LEGACY_KEY_PATTERN = Pattern.compile("net/minecraft/([a-z/]+)/([A-Z])");
+
+    private final String[] targets;
+    private final Map<String, Integer> versionIndices = new HashMap<>();
+    private final boolean[] legacy;
+    private final int words;
+    private final int groupCount;
+    private final long[] groupBits;
+    private final long[] hashes;
+    private final int[] groups;
+    private final long[] discriminativeHashes;
+    private final int[] discriminativeGroups;
+    private final MCPBloomFilter filter;
+
+    /**
+     * @param versions The versions to index; each gets a "-client" and a
+     * "-server" target, in this order.
+     */
+    MCPKeyIndex(List<String> versions, Map<String, MCPMappings> mappings) {
+        targets = new String[versions.size() * 2];
+        legacy = new boolean[targets.length];
+        words = (targets.length + 63) >> 6;
+
+        int total = 0;
+        for (int v = 0; v < versions.size(); v++) {
+            String version = versions.get(v);
+            targets[v * 2] = version + "-client";
+            targets[v * 2 + 1] = version + "-server";
+            legacy[v * 2] = legacy[v * 2 + 1] = isLegacy(version);
+            versionIndices.put(version, v);
+            MCPMappings m = mappings.get(version);
+            total += m != null ? m.size() : 0;
+        }
+
+        long[] allHashes = new long[total];
+        int count = 0;
+        for (String version : versions) {
+            MCPMappings m = mappings.get(version);
+            for (int i = 0; m != null && i < m.size(); i++) {
+                allHashes[count++] = m.getHash(i);
+            }
+        }
+        Arrays.sort(allHashes);
+        int unique = 0;
+        for (int i = 0; i < allHashes.length; i++) {
+            if (unique == 0 || allHashes[unique - 1] != allHashes[i]) {
+                allHashes[unique++] = allHashes[i];
+            }
+        }
+        hashes = Arrays.copyOf(allHashes, unique);
+
+        long[] bits = new long[hashes.length * words];
+        for (int v = 0; v < versions.size(); v++) {
+            MCPMappings m = mappings.get(versions.get(v));
+            // both arrays are sorted, so walk them side by side
+            int k = 0;
+            for (int i = 0; m != null && i < m.size(); i++) {
+                long hash = m.getHash(i);
+                while (hashes[k] != hash) {
+                    k++;
+                }
+                int sides = m.getSides(i);
+                if ((sides & MCPMappings.CLIENT) != 0) {
+                    bits[k * words + ((v * 2) >> 6)] |= 1L << (v * 2);
+                }
+                if ((sides & MCPMappings.SERVER) != 0) {
+                    bits[k * words + ((v * 2 + 1) >> 6)] |= 1L << (v * 2 + 1);
+                }
+            }
+        }
+
+        BitSet all = new BitSet(targets.length);
+        all.set(0, targets.length);
+        Map<BitSet, Integer> groupIds = new HashMap<>();
+        List<BitSet> groupList = new ArrayList<>();
+        groups = new int[hashes.length];
+        int discriminative = 0;
+        for (int k = 0; k < hashes.length; k++) {
+            BitSet group = BitSet.valueOf(Arrays.copyOfRange(bits, k * words, (k + 1) * words));
+            Integer id = groupIds.get(group);
+            if (id == null) {
+                id = groupList.size();
+                groupIds.put(group, id);
+                groupList.add(group);
+            }
+            groups[k] = id;
+            if (!group.equals(all)) {
+                discriminative++;
+            }
+        }
+
+        groupCount = groupList.size();
+        groupBits = new long[groupCount * words];
+        for (int g = 0; g < groupList.size(); g++) {
+            long[] group = groupList.get(g).toLongArray();
+            System.arraycopy(group, 0, groupBits, g * words, group.length);
+        }
+
+        discriminativeHashes = new long[discriminative];
+        discriminativeGroups = new int[discriminative];
+        Integer allId = groupIds.get(all);
+        int d = 0;
+        for (int k = 0; k < hashes.length; k++) {
+            if (allId == null || groups[k] != allId) {
+                discriminativeHashes[d] = hashes[k];
+                discriminativeGroups[d++] = groups[k];
+            }
+        }
+
+        filter = MCPBloomFilter.create(discriminativeHashes.length);
+        for (long hash : discriminativeHashes) {
+            filter.add(hash);
+        }
+    }
+
+    static boolean isLegacy(String version) {
+        return version.startsWith("1.5") || version.startsWith("1.6");
+    }
+
+    /**
+     * 1.5.x and 1.6.x mappings store every class in net/minecraft/src, so
+     * keys are matched against them with the package flattened.
+     */
+    static String toLegacyKey(String key) {
+        return key.contains("net/minecraft/") ? LEGACY_KEY_PATTERN.matcher(key).replaceAll("net/minecraft/src/$2") : key;
+    }
+
+    String[] getTargets() {
+        return targets;
+    }
+
+    /**
+     * @return Which targets, in the order of {@link #getTargets()}, belong
+     * to one of the given versions.
+     */
+    boolean[] getTargetMask(Collection<String> versions) {
+        boolean[] mask = new boolean[targets.length];
+        for (String version : versions) {
+            Integer v = versionIndices.get(version);
+            if (v != null) {
+                mask[v * 2] = mask[v * 2 + 1] = true;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * @return The number of the given keys contained in each target, in
+     * the order of {@link #getTargets()}, less the number of keys contained
+     * in every target.
+     */
+    int[] count(Collection<String> keys) {
+        int[] direct = new int[groupCount];
+        int[] modernOnly = new int[groupCount];
+        int[] legacyOnly = new int[groupCount];
+
+        for (String key : keys) {
+            String legacyKey = toLegacyKey(key);
+            if (legacyKey.equals(key)) {
+                long hash = MCPUtils.hashKey(key);
+                if (filter.mightContain(hash)) {
+                    int k = Arrays.binarySearch(discriminativeHashes, hash);
+                    if (k >= 0) {
+                        direct[discriminativeGroups[k]]++;
+                    }
+                }
+            } else {
+                int k = Arrays.binarySearch(hashes, MCPUtils.hashKey(key));
+                if (k >= 0) {
+                    modernOnly[groups[k]]++;
+                }
+                k = Arrays.binarySearch(hashes, MCPUtils.hashKey(legacyKey));
+                if (k >= 0) {
+                    legacyOnly[groups[k]]++;
+                }
+            }
+        }
+
+        int[] counts = new int[targets.length];
+        for (int g = 0; g < groupCount; g++) {
+            if (direct[g] == 0 && modernOnly[g] == 0 && legacyOnly[g] == 0) {
+                continue;
+            }
+            for (int w = 0; w < words; w++) {
+                long word = groupBits[g * words + w];
+                while (word != 0) {
+                    int t = (w << 6) + Long.numberOfTrailingZeros(word);
+                    counts[t] += direct[g] + (legacy[t] ? legacyOnly[g] : modernOnly[g]);
+                    word &= word - 1;
+                }
+            }
+        }
+        return counts;
+    }
+}
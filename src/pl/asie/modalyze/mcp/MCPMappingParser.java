@@ -0,0 +1,285 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze.mcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Streaming parser for SRG and MCP CSV mapping files, producing the key
+ * hashes of each side directly.
+ *
+ * Lines are tokenized in place in the read buffer, and keys are assembled
+ * in reused builders, so no objects are created per line. Keys and tokens
+ * follow the rules of {@link MCPUtils} and {@link String#split(String)}
+ * exactly. Lines which are not plain ASCII are decoded as UTF-8 first, so
+ * that they hash the same as their String form.
+ */
+class MCPMappingParser {
+    private interface LineHandler {
+        void accept(CharSequence line);
+    }
+
+    private static class AsciiLine implements CharSequence {
+        private byte[] data;
+        private int start, length;
+
+        private AsciiLine set(byte[] data, int start, int end) {
+            this.data = data;
+            this.start = start;
+            this.length = end - start;
+            return this;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) data[start + index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().substring(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return new String(data, start, length, StandardCharsets.US_ASCII);
+        }
+    }
+
+    private final AsciiLine asciiLine = new AsciiLine();
+    private final StringBuilder name = new StringBuilder();
+    private final StringBuilder key = new StringBuilder();
+    private byte[] buffer = new byte[65536];
+    private int[] tokenStarts = new int[16], tokenEnds = new int[16];
+    private int tokenCount;
+    private long[] clientHashes = new long[1024], serverHashes = new long[1024];
+    private int clientCount, serverCount;
+
+    long[] getClientHashes() {
+        return Arrays.copyOf(clientHashes, clientCount);
+    }
+
+    long[] getServerHashes() {
+        return Arrays.copyOf(serverHashes, serverCount);
+    }
+
+    private void add(int sides, long hash) {
+        if ((sides & MCPMappings.CLIENT) != 0) {
+            if (clientCount == clientHashes.length) {
+                clientHashes = Arrays.copyOf(clientHashes, clientCount * 2);
+            }
+            clientHashes[clientCount++] = hash;
+        }
+        if ((sides & MCPMappings.SERVER) != 0) {
+            if (serverCount == serverHashes.length) {
+                serverHashes = Arrays.copyOf(serverHashes, serverCount * 2);
+            }
+            serverHashes[serverCount++] = hash;
+        }
+    }
+
+    private void readLines(InputStream stream, LineHandler handler) throws IOException {
+        int length = 0, pos = 0;
+        boolean skipLineFeed = false;
+        while (true) {
+            if (pos > 0) {
+                System.arraycopy(buffer, pos, buffer, 0, length - pos);
+                length -= pos;
+                pos = 0;
+            }
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+
+            int scanFrom = length;
+            int n = stream.read(buffer, length, buffer.length - length);
+            if (n < 0) {
+                if (pos < length) {
+                    acceptLine(buffer, pos, length, handler);
+                }
+                return;
+            }
+            length += n;
+
+            for (int i = scanFrom; i < length; i++) {
+                byte b = buffer[i];
+                if (skipLineFeed) {
+                    skipLineFeed = false;
+                    if (b == '\n') {
+                        // second half of a \r\n split across reads
+                        pos = i + 1;
+                        continue;
+                    }
+                }
+
+                if (b == '\n' || b == '\r') {
+                    acceptLine(buffer, pos, i, handler);
+                    if (b == '\r') {
+                        if (i + 1 == length) {
+                            skipLineFeed = true;
+                        } else if (buffer[i + 1] == '\n') {
+                            i++;
+                        }
+                    }
+                    pos = i + 1;
+                }
+            }
+        }
+    }
+
+    private void acceptLine(byte[] data, int start, int end, LineHandler handler) {
+        for (int i = start; i < end; i++) {
+            if (data[i] < 0) {
+                handler.accept(new String(data, start, end - start, StandardCharsets.UTF_8));
+                return;
+            }
+        }
+        handler.accept(asciiLine.set(data, start, end));
+    }
+
+    private void split(CharSequence line, char delimiter) {
+        tokenCount = 0;
+        int start = 0;
+        for (int i = 0; i <= line.length(); i++) {
+            if (i == line.length() || line.charAt(i) == delimiter) {
+                if (tokenCount == tokenStarts.length) {
+                    tokenStarts = Arrays.copyOf(tokenStarts, tokenCount * 2);
+                    tokenEnds = Arrays.copyOf(tokenEnds, tokenCount * 2);
+                }
+                tokenStarts[tokenCount] = start;
+                tokenEnds[tokenCount++] = i;
+                start = i + 1;
+            }
+        }
+        // like String.split, drop trailing empty tokens
+        while (tokenCount > 0 && tokenStarts[tokenCount - 1] == tokenEnds[tokenCount - 1]) {
+            tokenCount--;
+        }
+    }
+
+    private static boolean startsWith(CharSequence s, int offset, String prefix) {
+        if (s.length() - offset < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (s.charAt(offset + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean endsWith(CharSequence s, String suffix) {
+        return s.length() >= suffix.length() && startsWith(s, s.length() - suffix.length(), suffix);
+    }
+
+    private void appendToken(StringBuilder builder, CharSequence line, int token, boolean stripQuotes) {
+        for (int i = tokenStarts[token]; i < tokenEnds[token]; i++) {
+            char c = line.charAt(i);
+            if (!stripQuotes || c != '"') {
+                builder.append(c);
+            }
+        }
+    }
+
+    private boolean tokenEquals(CharSequence line, int token, String value, boolean stripQuotes) {
+        name.setLength(0);
+        appendToken(name, line, token, stripQuotes);
+        return value.contentEquals(name);
+    }
+
+    /**
+     * Hashes the field or method key for the member name currently in
+     * {@link #name}, as {@link MCPUtils#getFieldKey(String)} and
+     * {@link MCPUtils#getMethodKey(String, String)} would build it.
+     */
+    private long hashMemberKey(char type, CharSequence line, int sigToken, boolean stripQuotes) {
+        int basename = name.lastIndexOf("/") + 1;
+        key.setLength(0);
+        key.append(type).append(':');
+        key.append(name, startsWith(name, basename, "func_") ? basename : 0, name.length());
+        if (sigToken >= 0) {
+            key.append(':');
+            appendToken(key, line, sigToken, stripQuotes);
+        }
+        return MCPUtils.hashKey(key);
+    }
+
+    private long hashSrgKey(char type, CharSequence line, int nameToken, int sigToken) {
+        name.setLength(0);
+        appendToken(name, line, nameToken, false);
+        return hashMemberKey(type, line, sigToken, false);
+    }
+
+    private void acceptSrgLine(CharSequence line, int sides) {
+        split(line, ' ');
+        if (startsWith(line, 0, "FD:") && tokenCount >= 3) {
+            add(sides, hashSrgKey('F', line, 1, -1));
+            add(sides, hashSrgKey('F', line, 2, -1));
+        } else if (startsWith(line, 0, "MD:") && tokenCount >= 5) {
+            add(sides, hashSrgKey('M', line, 1, 2));
+            add(sides, hashSrgKey('M', line, 3, 4));
+        }
+    }
+
+    /**
+     * Parses an SRG file with both sides, where members present on one side
+     * only are marked with #C or #S.
+     */
+    void parseJoinedSrg(InputStream stream) throws IOException {
+        readLines(stream, line -> {
+            int sides = (endsWith(line, "#S") ? 0 : MCPMappings.CLIENT) | (endsWith(line, "#C") ? 0 : MCPMappings.SERVER);
+            acceptSrgLine(line, sides);
+        });
+    }
+
+    void parseSrg(InputStream stream, int sides) throws IOException {
+        readLines(stream, line -> acceptSrgLine(line, sides));
+    }
+
+    /**
+     * Parses an MCP fields.csv or methods.csv file; the side of each member
+     * is given by its last column.
+     */
+    void parseCsv(InputStream stream, boolean methods) throws IOException {
+        boolean[] header = {true};
+        readLines(stream, line -> {
+            if (header[0]) {
+                header[0] = false;
+                return;
+            }
+
+            split(line, ',');
+            if (tokenCount == 9) {
+                int sides = tokenEquals(line, 8, "1", true) ? MCPMappings.SERVER : MCPMappings.CLIENT;
+                name.setLength(0);
+                appendToken(name, line, 6, true);
+                name.append('/');
+                appendToken(name, line, 2, true);
+                add(sides, hashMemberKey(methods ? 'M' : 'F', line, methods ? 4 : -1, true));
+            }
+        });
+    }
+}
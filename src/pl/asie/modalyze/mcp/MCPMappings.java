@@ -0,0 +1,160 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze.mcp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The mapping keys of a single Minecraft version, stored as a sorted array
+ * of 64-bit key hashes (see {@link MCPUtils#hashKey(CharSequence)}), each
+ * with a mask of the sides it is present on.
+ *
+ * Snapshots are saved in exactly this layout and memory-mapped when read
+ * back, so they are queried in place:
+ *
+ *   int magic, int format version, long source fingerprint, int count,
+ *   long[count] hashes, byte[count] side masks
+ */
+public class MCPMappings {
+    public static final int CLIENT = 1;
+    public static final int SERVER = 2;
+    public static final MCPMappings EMPTY = new MCPMappings(create(new long[0], new byte[0], 0));
+
+    private static final int MAGIC = 0x4D43504D; // MCPM
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_LENGTH = 20;
+
+    private final ByteBuffer buffer;
+    private final int count;
+
+    private MCPMappings(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.count = buffer.getInt(16);
+    }
+
+    private static long getLength(int count) {
+        return HEADER_LENGTH + count * 9L;
+    }
+
+    private static ByteBuffer create(long[] hashes, byte[] sides, long sourceFingerprint) {
+        ByteBuffer buffer = ByteBuffer.allocate((int) getLength(hashes.length));
+        buffer.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(sourceFingerprint).putInt(hashes.length);
+        for (long hash : hashes) {
+            buffer.putLong(hash);
+        }
+        buffer.put(sides);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Creates mappings from the key hashes of both sides; the arrays are
+     * sorted in place and may contain duplicates.
+     */
+    public static MCPMappings create(long[] clientHashes, long[] serverHashes, long sourceFingerprint) {
+        Arrays.sort(clientHashes);
+        Arrays.sort(serverHashes);
+        long[] hashes = new long[clientHashes.length + serverHashes.length];
+        byte[] sides = new byte[hashes.length];
+
+        // merge both sides, dropping duplicates
+        int count = 0, c = 0, s = 0;
+        while (c < clientHashes.length || s < serverHashes.length) {
+            long hash;
+            int side = 0;
+            if (s >= serverHashes.length || (c < clientHashes.length && clientHashes[c] <= serverHashes[s])) {
+                hash = clientHashes[c];
+            } else {
+                hash = serverHashes[s];
+            }
+            while (c < clientHashes.length && clientHashes[c] == hash) {
+                side |= CLIENT;
+                c++;
+            }
+            while (s < serverHashes.length && serverHashes[s] == hash) {
+                side |= SERVER;
+                s++;
+            }
+            hashes[count] = hash;
+            sides[count++] = (byte) side;
+        }
+
+        return new MCPMappings(create(Arrays.copyOf(hashes, count), Arrays.copyOf(sides, count), sourceFingerprint));
+    }
+
+    /**
+     * @return The snapshot stored in the given file, or null if it was
+     * written in a different format.
+     */
+    public static MCPMappings read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length < HEADER_LENGTH || length > Integer.MAX_VALUE) {
+                return null;
+            }
+
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION || length != getLength(buffer.getInt(16))) {
+                return null;
+            }
+            return new MCPMappings(buffer);
+        }
+    }
+
+    public void write(File file) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        File tmpFile = File.createTempFile(file.getName(), ".tmp", parent);
+        try {
+            try (FileChannel channel = FileChannel.open(tmpFile.toPath(), StandardOpenOption.WRITE)) {
+                ByteBuffer data = buffer.duplicate();
+                data.position(0);
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpFile.toPath());
+        }
+    }
+
+    /**
+     * @return A fingerprint of the MCP file the snapshot was built from.
+     */
+    public long getSourceFingerprint() {
+        return buffer.getLong(8);
+    }
+
+    public int size() {
+        return count;
+    }
+
+    long getHash(int i) {
+        return buffer.getLong(HEADER_LENGTH + i * 8);
+    }
+
+    int getSides(int i) {
+        return buffer.get(HEADER_LENGTH + count * 8 + i);
+    }
+}
@@ -38,4 +38,22 @@ public final class MCPUtils {
             return "M:" + name + ":" + sig;
         }
     }
+
+    /**
+     * 64-bit hash of a mapping key, as stored in mapping snapshots.
+     */
+    public static long hashKey(CharSequence key) {
+        // FNV-1a, followed by the MurmurHash3 finalizer for better mixing
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
 }
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze.util;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+
+public interface ClassProcessor {
+	int DEFAULT_PARSING_OPTIONS = ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES;
+
+	/**
+	 * @return A visitor for the next class, or null if this processor is
+	 * not interested in it.
+	 */
+	ClassVisitor getClassVisitor();
+
+	/**
+	 * Called with the constant pool of the next class before it is parsed.
+	 * Processors which can tell from it that the class is irrelevant to
+	 * them, or which can take everything they need straight from it, should
+	 * return false so that the class is not parsed on their behalf.
+	 *
+	 * @return Whether the processor still needs to visit the class.
+	 */
+	default boolean preprocess(ConstantPoolScanner scanner) {
+		return true;
+	}
+
+	/**
+	 * @return The ClassReader parsing options this processor needs. Events
+	 * skipped by these options are not delivered to the processor, even if
+	 * another processor causes them to be parsed.
+	 */
+	default int getParsingOptions() {
+		return DEFAULT_PARSING_OPTIONS;
+	}
+}
@@ -0,0 +1,627 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze.util;
+
+import org.objectweb.asm.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Feeds a single ClassReader pass to any number of ClassProcessors.
+ *
+ * The reader is run with the least restrictive combination of the
+ * processors' parsing options, while each processor only receives the
+ * events its own options ask for. Processors are first offered the
+ * class's constant pool, and the reader is only run at all if one of them
+ * still needs to visit the class afterwards.
+ */
+public class ClassProcessorDispatcher {
+	private static final int SKIP_MASK = ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES;
+
+	private final List<ClassProcessor> processors = new ArrayList<>();
+
+	public ClassProcessorDispatcher add(ClassProcessor processor) {
+		processors.add(processor);
+		return this;
+	}
+
+	public boolean isEmpty() {
+		return processors.isEmpty();
+	}
+
+	public void accept(ClassReader reader) {
+		List<ClassVisitor> visitors = new ArrayList<>(processors.size());
+		List<Integer> visitorOptions = new ArrayList<>(processors.size());
+		int options = SKIP_MASK;
+		ConstantPoolScanner scanner = new ConstantPoolScanner(reader);
+
+		for (ClassProcessor processor : processors) {
+			if (!processor.preprocess(scanner)) {
+				continue;
+			}
+
+			ClassVisitor visitor = processor.getClassVisitor();
+			if (visitor != null) {
+				int o = processor.getParsingOptions();
+				visitors.add(visitor);
+				visitorOptions.add(o);
+				options = (options & (o | ~SKIP_MASK)) | (o & ~SKIP_MASK);
+			}
+		}
+
+		if (visitors.isEmpty()) {
+			return;
+		}
+
+		int[] optionArray = new int[visitorOptions.size()];
+		for (int i = 0; i < optionArray.length; i++) {
+			optionArray[i] = visitorOptions.get(i);
+		}
+
+		reader.accept(new CompositeClassVisitor(visitors.toArray(new ClassVisitor[0]), optionArray), options);
+	}
+
+	private static boolean wants(int options, int skipFlags) {
+		return (options & skipFlags) == 0;
+	}
+
+	private static AnnotationVisitor composite(List<AnnotationVisitor> visitors) {
+		if (visitors.isEmpty()) {
+			return null;
+		} else if (visitors.size() == 1) {
+			return visitors.get(0);
+		} else {
+			return new CompositeAnnotationVisitor(visitors.toArray(new AnnotationVisitor[0]));
+		}
+	}
+
+	private static class CompositeAnnotationVisitor extends AnnotationVisitor {
+		private final AnnotationVisitor[] visitors;
+
+		CompositeAnnotationVisitor(AnnotationVisitor[] visitors) {
+			super(Opcodes.ASM7);
+			this.visitors = visitors;
+		}
+
+		@Override
+		public void visit(String name, Object value) {
+			for (AnnotationVisitor v : visitors) {
+				v.visit(name, value);
+			}
+		}
+
+		@Override
+		public void visitEnum(String name, String descriptor, String value) {
+			for (AnnotationVisitor v : visitors) {
+				v.visitEnum(name, descriptor, value);
+			}
+		}
+
+		@Override
+		public AnnotationVisitor visitAnnotation(String name, String descriptor) {
+			List<AnnotationVisitor> children = new ArrayList<>(visitors.length);
+			for (AnnotationVisitor v : visitors) {
+				AnnotationVisitor child = v.visitAnnotation(name, descriptor);
+				if (child != null) {
+					children.add(child);
+				}
+			}
+			return composite(children);
+		}
+
+		@Override
+		public AnnotationVisitor visitArray(String name) {
+			List<AnnotationVisitor> children = new ArrayList<>(visitors.length);
+			for (AnnotationVisitor v : visitors) {
+				AnnotationVisitor child = v.visitArray(name);
+				if (child != null) {
+					children.add(child);
+				}
+			}
+			return composite(children);
+		}
+
+		@Override
+		public void visitEnd() {
+			for (AnnotationVisitor v : visitors) {
+				v.visitEnd();
+			}
+		}
+	}
+
+	private static class CompositeFieldVisitor extends FieldVisitor {
+		private final FieldVisitor[] visitors;
+
+		CompositeFieldVisitor(FieldVisitor[] visitors) {
+			super(Opcodes.ASM7);
+			this.visitors = visitors;
+		}
+
+		@Override
+		public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
+			List<AnnotationVisitor> children = new ArrayList<>(visitors.length);
+			for (FieldVisitor v : visitors) {
+				AnnotationVisitor child = v.visitAnnotation(descriptor, visible);
+				if (child != null) {
+					children.add(child);
+				}
+			}
+			return composite(children);
+		}
+
+		@Override
+		public AnnotationVisitor visitTypeAnnotation(int typeRef, TypePath typePath, String descriptor, boolean visible) {
+			List<AnnotationVisitor> children = new ArrayList<>(visitors.length);
+			for (FieldVisitor v : visitors) {
+				AnnotationVisitor child = v.visitTypeAnnotation(typeRef, typePath, descriptor, visible);
+				if (child != null) {
+					children.add(child);
+				}
+			}
+			return composite(children);
+		}
+
+		@Override
+		public void visitAttribute(Attribute attribute) {
+			for (FieldVisitor v : visitors) {
+				v.visitAttribute(attribute);
+			}
+		}
+
+		@Override
+		public void visitEnd() {
+			for (FieldVisitor v : visitors) {
+				v.visitEnd();
+			}
+		}
+	}
+
+	private static class CompositeMethodVisitor extends MethodVisitor {
+		private final MethodVisitor[] visitors;
+		private final int[] options;
+
+		CompositeMethodVisitor(MethodVisitor[] visitors, int[] options) {
+			super(Opcodes.ASM7);
+			this.visitors = visitors;
+			this.options = options;
+		}
+
+		private boolean wantsCode(int i) {
+			return wants(options[i], ClassReader.SKIP_CODE);
+		}
+
+		@Override
+		public void visitParameter(String name, int access) {
+			for (MethodVisitor v : visitors) {
+				v.visitParameter(name, access);
+			}
+		}
+
+		@Override
+		public AnnotationVisitor visitAnnotationDefault() {
+			List<AnnotationVisitor> children = new ArrayList<>(visitors.length);
+			for (MethodVisitor v : visitors) {
+				AnnotationVisitor child = v.visitAnnotationDefault();
+				if (child != null) {
+					children.add(child);
+				}
+			}
+			return composite(children);
+		}
+
+		@Override
+		public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
+			List<AnnotationVisitor> children = new ArrayList<>(visitors.length);
+			for (MethodVisitor v : visitors) {
+				AnnotationVisitor child = v.visitAnnotation(descriptor, visible);
+				if (child != null) {
+					children.add(child);
+				}
+			}
+			return composite(children);
+		}
+
+		@Override
+		public AnnotationVisitor visitTypeAnnotation(int typeRef, TypePath typePath, String descriptor, boolean visible) {
+			List<AnnotationVisitor> children = new ArrayList<>(visitors.length);
+			for (MethodVisitor v : visitors) {
+				AnnotationVisitor child = v.visitTypeAnnotation(typeRef, typePath, descriptor, visible);
+				if (child != null) {
+					children.add(child);
+				}
+			}
+			return composite(children);
+		}
+
+		@Override
+		public void visitAnnotableParameterCount(int parameterCount, boolean visible) {
+			for (MethodVisitor v : visitors) {
+				v.visitAnnotableParameterCount(parameterCount, visible);
+			}
+		}
+
+		@Override
+		public AnnotationVisitor visitParameterAnnotation(int parameter, String descriptor, boolean visible) {
+			List<AnnotationVisitor> children = new ArrayList<>(visitors.length);
+			for (MethodVisitor v : visitors) {
+				AnnotationVisitor child = v.visitParameterAnnotation(parameter, descriptor, visible);
+				if (child != null) {
+					children.add(child);
+				}
+			}
+			return composite(children);
+		}
+
+		@Override
+		public void visitAttribute(Attribute attribute) {
+			for (MethodVisitor v : visitors) {
+				v.visitAttribute(attribute);
+			}
+		}
+
+		@Override
+		public void visitCode() {
+			for (int i = 0; i < visitors.length; i++) {
+				if (wantsCode(i)) {
+					visitors[i].visitCode();
+				}
+			}
+		}
+
+		@Override
+		public void visitFrame(int type, int numLocal, Object[] local, int numStack, Object[] stack) {
+			for (int i = 0; i < visitors.length; i++) {
+				if (wants(options[i], ClassReader.SKIP_CODE | ClassReader.SKIP_FRAMES)) {
+					visitors[i].visitFrame(type, numLocal, local, numStack, stack);
+				}
+			}
+		}
+
+		@Override
+		public void visitInsn(int opcode) {
+			for (int i = 0; i < visitors.length; i++) {
+				if (wantsCode(i)) {
+					visitors[i].visitInsn(opcode);
+				}
+			}
+		}
+
+		@Override
+		public void visitIntInsn(int opcode, int operand) {
+			for (int i = 0; i < visitors.length; i++) {
+				if (wantsCode(i)) {
+					visitors[i].visitIntInsn(opcode, operand);
+				}
+			}
+		}
+
+		@Override
+		public void visitVarInsn(int opcode, int var) {
+			for (int i = 0; i < visitors.length; i++) {
+				if (wantsCode(i)) {
+					visitors[i].visitVarInsn(opcode, var);
+				}
+			}
+		}
+
+		@Override
+		public void visitTypeInsn(int opcode, String type) {
+			for (int i = 0; i < visitors.length; i++) {
+				if (wantsCode(i)) {
+					visitors[i].visitTypeInsn(opcode, type);
+				}
+			}
+		}
+
+		@Override
+		public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+			for (int i = 0; i < visitors.length; i++) {
+				if (wantsCode(i)) {
+					visitors[i].visitFieldInsn(opcode, owner, name, descriptor);
+				}
+			}
+		}
+
+		@Override
+		public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+			for (int i = 0; i < visitors.length; i++) {
+				if (wantsCode(i)) {
+					visitors[i].visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+				}
+			}
+		}
+
+		@Override
+		public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrapMethodHandle, Object... bootstrapMethodArguments) {
+			for (int i = 0; i < visitors.length; i++) {
+				if (wantsCode(i)) {
+					visitors[i].visitInvokeDynamicInsn(name, descriptor, bootstrapMethodHandle, bootstrapMethodArguments);
+				}
+			}
+		}
+
+		@Override
+		public void visitJumpInsn(int opcode, Label label) {
+			for (int i = 0; i < visitors.length; i++) {
+				if (wantsCode(i)) {
+					visitors[i].visitJumpInsn(opcode, label);
+				}
+			}
+		}
+
+		@Override
+		public void visitLabel(Label label) {
+			for (int i = 0; i < visitors.length; i++) {
+				if (wantsCode(i)) {
+					visitors[i].visitLabel(label);
+				}
+			}
+		}
+
+		@Override
+		public void visitLdcInsn(Object value) {
+			for (int i = 0; i < visitors.length; i++) {
+				if (wantsCode(i)) {
+					visitors[i].visitLdcInsn(value);
+				}
+			}
+		}
+
+		@Override
+		public void visitIincInsn(int var, int increment) {
+			for (int i = 0; i < visitors.length; i++) {
+				if (wantsCode(i)) {
+					visitors[i].visitIincInsn(var, increment);
+				}
+			}
+		}
+
+		@Override
+		public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+			for (int i = 0; i < visitors.length; i++) {
+				if (wantsCode(i)) {
+					visitors[i].visitTableSwitchInsn(min, max, dflt, labels);
+				}
+			}
+		}
+
+		@Override
+		public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+			for (int i = 0; i < visitors.length; i++) {
+				if (wantsCode(i)) {
+					visitors[i].visitLookupSwitchInsn(dflt, keys, labels);
+				}
+			}
+		}
+
+		@Override
+		public void visitMultiANewArrayInsn(String descriptor, int numDimensions) {
+			for (int i = 0; i < visitors.length; i++) {
+				if (wantsCode(i)) {
+					visitors[i].visitMultiANewArrayInsn(descriptor, numDimensions);
+				}
+			}
+		}
+
+		@Override
+		public AnnotationVisitor visitInsnAnnotation(int typeRef, TypePath typePath, String descriptor, boolean visible) {
+			List<AnnotationVisitor> children = new ArrayList<>(visitors.length);
+			for (int i = 0; i < visitors.length; i++) {
+				if (wantsCode(i)) {
+					AnnotationVisitor child = visitors[i].visitInsnAnnotation(typeRef, typePath, descriptor, visible);
+					if (child != null) {
+						children.add(child);
+					}
+				}
+			}
+			return composite(children);
+		}
+
+		@Override
+		public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+			for (int i = 0; i < visitors.length; i++) {
+				if (wantsCode(i)) {
+					visitors[i].visitTryCatchBlock(start, end, handler, type);
+				}
+			}
+		}
+
+		@Override
+		public AnnotationVisitor visitTryCatchAnnotation(int typeRef, TypePath typePath, String descriptor, boolean visible) {
+			List<AnnotationVisitor> children = new ArrayList<>(visitors.length);
+			for (int i = 0; i < visitors.length; i++) {
+				if (wantsCode(i)) {
+					AnnotationVisitor child = visitors[i].visitTryCatchAnnotation(typeRef, typePath, descriptor, visible);
+					if (child != null) {
+						children.add(child);
+					}
+				}
+			}
+			return composite(children);
+		}
+
+		@Override
+		public void visitLocalVariable(String name, String descriptor, String signature, Label start, Label end, int index) {
+			for (int i = 0; i < visitors.length; i++) {
+				if (wants(options[i], ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG)) {
+					visitors[i].visitLocalVariable(name, descriptor, signature, start, end, index);
+				}
+			}
+		}
+
+		@Override
+		public AnnotationVisitor visitLocalVariableAnnotation(int typeRef, TypePath typePath, Label[] start, Label[] end, int[] index, String descriptor, boolean visible) {
+			List<AnnotationVisitor> children = new ArrayList<>(visitors.length);
+			for (int i = 0; i < visitors.length; i++) {
+				if (wants(options[i], ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG)) {
+					AnnotationVisitor child = visitors[i].visitLocalVariableAnnotation(typeRef, typePath, start, end, index, descriptor, visible);
+					if (child != null) {
+						children.add(child);
+					}
+				}
+			}
+			return composite(children);
+		}
+
+		@Override
+		public void visitLineNumber(int line, Label start) {
+			for (int i = 0; i < visitors.length; i++) {
+				if (wants(options[i], ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG)) {
+					visitors[i].visitLineNumber(line, start);
+				}
+			}
+		}
+
+		@Override
+		public void visitMaxs(int maxStack, int maxLocals) {
+			for (int i = 0; i < visitors.length; i++) {
+				if (wantsCode(i)) {
+					visitors[i].visitMaxs(maxStack, maxLocals);
+				}
+			}
+		}
+
+		@Override
+		public void visitEnd() {
+			for (MethodVisitor v : visitors) {
+				v.visitEnd();
+			}
+		}
+	}
+
+	private static class CompositeClassVisitor extends ClassVisitor {
+		private final ClassVisitor[] visitors;
+		private final int[] options;
+
+		CompositeClassVisitor(ClassVisitor[] visitors, int[] options) {
+			super(Opcodes.ASM7);
+			this.visitors = visitors;
+			this.options = options;
+		}
+
+		@Override
+		public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+			for (ClassVisitor v : visitors) {
+				v.visit(version, access, name, signature, superName, interfaces);
+			}
+		}
+
+		@Override
+		public void visitSource(String source, String debug) {
+			for (int i = 0; i < visitors.length; i++) {
+				if (wants(options[i], ClassReader.SKIP_DEBUG)) {
+					visitors[i].visitSource(source, debug);
+				}
+			}
+		}
+
+		@Override
+		public void visitOuterClass(String owner, String name, String descriptor) {
+			for (ClassVisitor v : visitors) {
+				v.visitOuterClass(owner, name, descriptor);
+			}
+		}
+
+		@Override
+		public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
+			List<AnnotationVisitor> children = new ArrayList<>(visitors.length);
+			for (ClassVisitor v : visitors) {
+				AnnotationVisitor child = v.visitAnnotation(descriptor, visible);
+				if (child != null) {
+					children.add(child);
+				}
+			}
+			return composite(children);
+		}
+
+		@Override
+		public AnnotationVisitor visitTypeAnnotation(int typeRef, TypePath typePath, String descriptor, boolean visible) {
+			List<AnnotationVisitor> children = new ArrayList<>(visitors.length);
+			for (ClassVisitor v : visitors) {
+				AnnotationVisitor child = v.visitTypeAnnotation(typeRef, typePath, descriptor, visible);
+				if (child != null) {
+					children.add(child);
+				}
+			}
+			return composite(children);
+		}
+
+		@Override
+		public void visitAttribute(Attribute attribute) {
+			for (ClassVisitor v : visitors) {
+				v.visitAttribute(attribute);
+			}
+		}
+
+		@Override
+		public void visitInnerClass(String name, String outerName, String innerName, int access) {
+			for (ClassVisitor v : visitors) {
+				v.visitInnerClass(name, outerName, innerName, access);
+			}
+		}
+
+		@Override
+		public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+			List<FieldVisitor> children = new ArrayList<>(visitors.length);
+			for (ClassVisitor v : visitors) {
+				FieldVisitor child = v.visitField(access, name, descriptor, signature, value);
+				if (child != null) {
+					children.add(child);
+				}
+			}
+
+			if (children.isEmpty()) {
+				return null;
+			} else if (children.size() == 1) {
+				return children.get(0);
+			} else {
+				return new CompositeFieldVisitor(children.toArray(new FieldVisitor[0]));
+			}
+		}
+
+		@Override
+		public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+			List<MethodVisitor> children = new ArrayList<>(visitors.length);
+			List<Integer> childOptions = new ArrayList<>(visitors.length);
+			for (int i = 0; i < visitors.length; i++) {
+				MethodVisitor child = visitors[i].visitMethod(access, name, descriptor, signature, exceptions);
+				if (child != null) {
+					children.add(child);
+					childOptions.add(options[i]);
+				}
+			}
+
+			if (children.isEmpty()) {
+				return null;
+			}
+
+			int[] optionArray = new int[childOptions.size()];
+			for (int i = 0; i < optionArray.length; i++) {
+				optionArray[i] = childOptions.get(i);
+			}
+			return new CompositeMethodVisitor(children.toArray(new MethodVisitor[0]), optionArray);
+		}
+
+		@Override
+		public void visitEnd() {
+			for (ClassVisitor v : visitors) {
+				v.visitEnd();
+			}
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2016 Adrian Siekierka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.asie.modalyze.util;
+
+import org.objectweb.asm.ClassReader;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+/**
+ * Answers questions about a class straight from its constant pool and
+ * member tables, without running a full ClassReader visit.
+ */
+public class ConstantPoolScanner {
+	private static final int CONSTANT_UTF8 = 1;
+	private static final int CONSTANT_FIELDREF = 9;
+	private static final int CONSTANT_METHODREF = 10;
+	private static final int CONSTANT_INTERFACE_METHODREF = 11;
+
+	public interface MemberConsumer {
+		void accept(String owner, String name, String desc);
+	}
+
+	private final ClassReader reader;
+	private final char[] charBuffer;
+
+	public ConstantPoolScanner(ClassReader reader) {
+		this.reader = reader;
+		this.charBuffer = new char[reader.getMaxStringLength()];
+	}
+
+	public String getClassName() {
+		return reader.getClassName();
+	}
+
+	public String getSuperName() {
+		return reader.getSuperName();
+	}
+
+	private boolean utf8Equals(int offset, byte[] value) {
+		if (reader.readUnsignedShort(offset) != value.length) {
+			return false;
+		}
+		for (int i = 0; i < value.length; i++) {
+			if ((byte) reader.readByte(offset + 2 + i) != value[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return Whether any of the given (ASCII) strings is present in the
+	 * constant pool.
+	 */
+	public boolean containsUtf8(Collection<String> values) {
+		byte[][] valueBytes = new byte[values.size()][];
+		int i = 0;
+		for (String s : values) {
+			valueBytes[i++] = s.getBytes(StandardCharsets.UTF_8);
+		}
+
+		for (int item = 1; item < reader.getItemCount(); item++) {
+			int offset = reader.getItem(item);
+			if (offset == 0 || reader.readByte(offset - 1) != CONSTANT_UTF8) {
+				continue;
+			}
+			for (byte[] value : valueBytes) {
+				if (utf8Equals(offset, value)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private void acceptMemberRef(int offset, MemberConsumer consumer) {
+		String owner = reader.readClass(offset, charBuffer);
+		int natOffset = reader.getItem(reader.readUnsignedShort(offset + 2));
+		consumer.accept(owner, reader.readUTF8(natOffset, charBuffer), reader.readUTF8(natOffset + 2, charBuffer));
+	}
+
+	/**
+	 * Lists every field referenced by the class.
+	 */
+	public void acceptFieldRefs(MemberConsumer consumer) {
+		for (int item = 1; item < reader.getItemCount(); item++) {
+			int offset = reader.getItem(item);
+			if (offset != 0 && reader.readByte(offset - 1) == CONSTANT_FIELDREF) {
+				acceptMemberRef(offset, consumer);
+			}
+		}
+	}
+
+	/**
+	 * Lists every method (including interface methods) referenced by the
+	 * class.
+	 */
+	public void acceptMethodRefs(MemberConsumer consumer) {
+		for (int item = 1; item < reader.getItemCount(); item++) {
+			int offset = reader.getItem(item);
+			if (offset != 0) {
+				int tag = reader.readByte(offset - 1);
+				if (tag == CONSTANT_METHODREF || tag == CONSTANT_INTERFACE_METHODREF) {
+					acceptMemberRef(offset, consumer);
+				}
+			}
+		}
+	}
+
+	private int skipMembers(int offset) {
+		int count = reader.readUnsignedShort(offset);
+		offset += 2;
+		for (int i = 0; i < count; i++) {
+			offset = skipAttributes(offset + 6);
+		}
+		return offset;
+	}
+
+	private int skipAttributes(int offset) {
+		int count = reader.readUnsignedShort(offset);
+		offset += 2;
+		for (int i = 0; i < count; i++) {
+			offset += 6 + reader.readInt(offset + 2);
+		}
+		return offset;
+	}
+
+	/**
+	 * Lists every method declared by the class, with the class as owner.
+	 */
+	public void acceptDeclaredMethods(MemberConsumer consumer) {
+		String owner = reader.getClassName();
+		int offset = reader.header + 6;
+		offset += 2 + reader.readUnsignedShort(offset) * 2;
+		offset = skipMembers(offset);
+
+		int count = reader.readUnsignedShort(offset);
+		offset += 2;
+		for (int i = 0; i < count; i++) {
+			consumer.accept(owner, reader.readUTF8(offset + 2, charBuffer), reader.readUTF8(offset + 4, charBuffer));
+			offset = skipAttributes(offset + 6);
+		}
+	}
+}
@@ -23,15 +23,14 @@ import org.objectweb.asm.Opcodes;
 import pl.asie.modalyze.ModAnalyzerUtils;
 import pl.asie.modalyze.ModMetadata;
 import pl.asie.modalyze.StringUtils;
+import pl.asie.modalyze.Version;
 
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
-public class ForgeModClassesProcessor {
+public class ForgeModClassesProcessor implements ClassProcessor {
 	public static final String DESC_125_BETAS = "Lfml/Mod;";
 	public static final String DESC_PRE_18 = "Lcpw/mods/fml/common/Mod;";
 	public static final String DESC_POST_18 = "Lnet/minecraftforge/fml/common/Mod;";
@@ -47,6 +46,13 @@ public class ForgeModClassesProcessor {
 		this.metadata = metadata;
 	}
 
+	@Override
+	public boolean preprocess(ConstantPoolScanner scanner) {
+		// Annotation descriptors are stored in the constant pool.
+		return scanner.containsUtf8(FORGE_MOD_ANNOTATIONS);
+	}
+
+	@Override
 	public ClassVisitor getClassVisitor() {
 		return new ModClassVisitor();
 	}
@@ -56,25 +62,20 @@ public class ForgeModClassesProcessor {
 			return true;
 		}
 
-		if (s.startsWith("a") || s.startsWith("b")) {
+		Version version = Version.of(s);
+		if (!version.isRelease()) {
 			return false;
 		}
 
-		try {
-			List<Integer> parsedMcVersion = Stream.of(s.split("-")[0].split("\\.")).map(Integer::parseInt).collect(Collectors.toList());
-
-			switch (forgeModAnnotation) {
-				case DESC_125_BETAS:
-					return parsedMcVersion.size() >= 2 && parsedMcVersion.get(0) == 1 && parsedMcVersion.get(1) == 2;
-				case DESC_PRE_18:
-					return parsedMcVersion.size() >= 2 && parsedMcVersion.get(0) == 1 && parsedMcVersion.get(1) >= 2 && parsedMcVersion.get(1) < 8;
-				case DESC_POST_18:
-					return parsedMcVersion.size() >= 2 && parsedMcVersion.get(0) == 1 && parsedMcVersion.get(1) >= 8;
-				default:
-					return false;
-			}
-		} catch (NumberFormatException e) {
-			return false;
+		switch (forgeModAnnotation) {
+			case DESC_125_BETAS:
+				return version.getMajor() == 1 && version.getMinor() == 2;
+			case DESC_PRE_18:
+				return version.getMajor() == 1 && version.getMinor() >= 2 && version.getMinor() < 8;
+			case DESC_POST_18:
+				return version.getMajor() == 1 && version.getMinor() >= 8;
+			default:
+				return false;
 		}
 	}
 
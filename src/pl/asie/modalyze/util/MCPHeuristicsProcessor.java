@@ -18,7 +18,10 @@ package pl.asie.modalyze.util;
 
 import lombok.Getter;
 import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import pl.asie.modalyze.ModAnalyzer;
@@ -31,55 +34,214 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Predicate;
+
+public class MCPHeuristicsProcessor implements ClassProcessor {
+	// how many classes to visit between two checks of the settled predicate
+	private static final int SETTLED_CHECK_INTERVAL = 16;
 
-public class MCPHeuristicsProcessor {
 	@Getter
 	private final ModMetadata metadata;
 	@Getter
 	private final Set<String> keys = new HashSet<>();
+	private boolean collectReferences, collectCallSites;
+	private int maxClasses = Integer.MAX_VALUE;
+	private long maxInstructions = Long.MAX_VALUE, maxTime = Long.MAX_VALUE;
+	private Predicate<Set<String>> settled;
+
+	@Getter
+	private int visitedClasses;
+	@Getter
+	private long visitedInstructions;
+	private long startTime;
+	private boolean stopped;
 
 	public MCPHeuristicsProcessor(ModMetadata metadata) {
 		this.metadata = metadata;
 	}
 
+	public MCPHeuristicsProcessor setCollectReferences(boolean cr) {
+		collectReferences = cr;
+		return this;
+	}
+
+	/**
+	 * Sets whether method bodies are visited to collect the fields and
+	 * methods used at call sites. This is much slower than reading the
+	 * declarations, so it is limited by the budget set below.
+	 */
+	public MCPHeuristicsProcessor setCollectCallSites(boolean cs) {
+		collectCallSites = cs;
+		return this;
+	}
+
+	public MCPHeuristicsProcessor setMaxClasses(int c) {
+		maxClasses = c;
+		return this;
+	}
+
+	public MCPHeuristicsProcessor setMaxInstructions(long i) {
+		maxInstructions = i;
+		return this;
+	}
+
+	/**
+	 * @param t The maximum time to spend visiting method bodies, in
+	 * milliseconds, counted from the first one.
+	 */
+	public MCPHeuristicsProcessor setMaxTime(long t) {
+		maxTime = t;
+		return this;
+	}
+
+	/**
+	 * Sets a check, run on the keys collected so far every few classes,
+	 * which returns true once they settle the result; no more method bodies
+	 * are visited after that.
+	 */
+	public MCPHeuristicsProcessor setSettled(Predicate<Set<String>> s) {
+		settled = s;
+		return this;
+	}
+
+	private boolean isCollectingCallSites() {
+		if (!collectCallSites || stopped) {
+			return false;
+		}
+
+		if (visitedClasses >= maxClasses || visitedInstructions >= maxInstructions
+				|| (visitedClasses > 0 && (System.nanoTime() - startTime) / 1000000L >= maxTime)) {
+			stopped = true;
+		} else if (settled != null && visitedClasses > 0 && visitedClasses % SETTLED_CHECK_INTERVAL == 0
+				&& settled.test(keys)) {
+			stopped = true;
+		}
+		return !stopped;
+	}
+
+	@Override
+	public boolean preprocess(ConstantPoolScanner scanner) {
+		// Everything needed is in the constant pool and the method table.
+		scanner.acceptDeclaredMethods((owner, name, desc) -> {
+			// potential override
+			if (name.startsWith("func_")) {
+				keys.add(MCPUtils.getMethodKey(owner + "/" + name, desc));
+			}
+		});
+		if (collectReferences) {
+			scanner.acceptMethodRefs((owner, name, desc) -> keys.add(MCPUtils.getMethodKey(owner + "/" + name, desc)));
+			scanner.acceptFieldRefs((owner, name, desc) -> keys.add(MCPUtils.getFieldKey(owner + "/" + name)));
+		}
+		// Method bodies are only visited for call sites, within the budget.
+		return isCollectingCallSites();
+	}
+
+	@Override
 	public ClassVisitor getClassVisitor() {
+		if (visitedClasses++ == 0) {
+			startTime = System.nanoTime();
+		}
 		return new ModClassVisitor();
 	}
 
+	@Override
+	public int getParsingOptions() {
+		return collectCallSites ? ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES : DEFAULT_PARSING_OPTIONS;
+	}
+
 	public class ModHMethodVisitor extends MethodVisitor {
 		public ModHMethodVisitor(MethodVisitor mv) {
 			super(Opcodes.ASM5, mv);
 		}
 
+		private boolean count() {
+			if (visitedInstructions >= maxInstructions) {
+				return false;
+			}
+			visitedInstructions++;
+			return true;
+		}
+
+		@Override
+		public void visitInsn(int opcode) {
+			count();
+		}
+
+		@Override
+		public void visitIntInsn(int opcode, int operand) {
+			count();
+		}
+
+		@Override
+		public void visitVarInsn(int opcode, int var) {
+			count();
+		}
+
+		@Override
+		public void visitTypeInsn(int opcode, String type) {
+			count();
+		}
+
+		@Override
+		public void visitJumpInsn(int opcode, Label label) {
+			count();
+		}
+
+		@Override
+		public void visitLdcInsn(Object value) {
+			count();
+		}
+
+		@Override
+		public void visitIincInsn(int var, int increment) {
+			count();
+		}
+
+		@Override
+		public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+			count();
+		}
+
+		@Override
+		public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+			count();
+		}
+
+		@Override
+		public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+			count();
+		}
+
+		@Override
+		public void visitMultiANewArrayInsn(String desc, int dims) {
+			count();
+		}
+
+		@Override
+		public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+			if (count()) {
+				keys.add(MCPUtils.getFieldKey(owner + "/" + name));
+			}
+		}
+
 		@Override
 		public void visitMethodInsn(int opcode, String owner, String name,
 		                            String desc, boolean itf) {
-			keys.add(MCPUtils.getMethodKey(owner + "/" + name, desc));
+			if (count()) {
+				keys.add(MCPUtils.getMethodKey(owner + "/" + name, desc));
+			}
 		}
 	}
 
 	public class ModClassVisitor extends ClassVisitor {
-		private String className;
-
 		public ModClassVisitor() {
 			super(Opcodes.ASM5);
 		}
 
-		@Override
-		public void visit(int version, int access, String name, String signature,
-		                  String superName, String[] interfaces) {
-			super.visit(version, access, name, signature, superName, interfaces);
-			this.className = name;
-		}
-
 		@Override
 		public MethodVisitor visitMethod(int access, String name, String desc,
 		                                 String signature, String[] exceptions) {
-			// potential override
-			if (name.startsWith("func_")) {
-				keys.add(MCPUtils.getMethodKey(className + "/" + name, desc));
-			}
-
+			// declarations were already collected by preprocess()
 			return new ModHMethodVisitor(super.visitMethod(access, name, desc, signature, exceptions));
 		}
 	}
@@ -32,7 +32,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-public class ModLoaderClassesProcessor {
+public class ModLoaderClassesProcessor implements ClassProcessor {
 	@Getter
 	private final ModMetadata metadata;
 
@@ -40,6 +40,16 @@ public class ModLoaderClassesProcessor {
 		this.metadata = metadata;
 	}
 
+	public static boolean isBaseModClass(String superName) {
+		return superName != null && (superName.endsWith("BaseMod") || superName.endsWith("BaseModMp") || superName.equals("forge/NetworkMod"));
+	}
+
+	@Override
+	public boolean preprocess(ConstantPoolScanner scanner) {
+		return isBaseModClass(scanner.getSuperName());
+	}
+
+	@Override
 	public ClassVisitor getClassVisitor() {
 		return new ModClassVisitor();
 	}
@@ -59,7 +69,7 @@ public class ModLoaderClassesProcessor {
 
 			this.superName = superName;
 			this.className = name;
-			if (superName.endsWith("BaseMod") || superName.endsWith("BaseModMp") || superName.equals("forge/NetworkMod")) {
+			if (isBaseModClass(superName)) {
 				isBaseMod = true;
 				useClassNameAsModName = true;
 				metadata.valid = true;